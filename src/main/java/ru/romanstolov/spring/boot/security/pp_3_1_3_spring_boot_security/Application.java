@@ -2,12 +2,21 @@ package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 
 @SpringBootApplication
 public class Application {
 
+	/**
+	 * При "-Dapp.cds.training=true" (тренировочный запуск профиля "appcds" в pom.xml) приложение полностью
+	 * поднимается и сразу закрывается - JVM при выходе записывает архив загруженных классов. Этот запуск идёт
+	 * с профилем Spring "cds-training": на встроенной H2 и без фоновых задач.
+	 */
 	public static void main(String[] args) {
-		SpringApplication.run(Application.class, args);
+		ConfigurableApplicationContext context = SpringApplication.run(Application.class, args);
+		if (Boolean.getBoolean("app.cds.training")) {
+			context.close();
+		}
 	}
 
 }
@@ -0,0 +1,28 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.BreachedPasswordIndex;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Подключение локальной базы утёкших паролей. Включается указанием пути к файлу в свойстве
+ * "app.breached-passwords.file"; без него проверка паролей по базе не выполняется.
+ *
+ * @see BreachedPasswordIndex
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "app.breached-passwords", name = "file")
+public class BreachedPasswordConfig {
+
+    @Bean(destroyMethod = "close")
+    public BreachedPasswordIndex breachedPasswordIndex(@Value("${app.breached-passwords.file}") Path file)
+            throws IOException {
+        return new BreachedPasswordIndex(file);
+    }
+
+}
@@ -0,0 +1,60 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.AdaptiveConcurrencyLimiter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Регистрация фильтра адаптивного ограничения одновременных запросов и его метрик.
+ * Текущие лимиты, число выполняющихся и отброшенных запросов по каждой группе видны в Micrometer
+ * ("http.concurrency.limit", "http.concurrency.in-flight", "http.concurrency.rejected" с тегом "group").
+ *
+ * @see ConcurrencyLimitFilter
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "app.concurrency-limit", name = "enabled", havingValue = "true", matchIfMissing = true)
+@EnableConfigurationProperties(ConcurrencyLimitProperties.class)
+public class ConcurrencyLimitConfig {
+    private static final List<String> GROUPS = List.of(ConcurrencyLimitFilter.LOGIN,
+            ConcurrencyLimitFilter.REGISTRATION, ConcurrencyLimitFilter.USER, ConcurrencyLimitFilter.ADMIN,
+            ConcurrencyLimitFilter.ADMIN_USERS);
+
+    @Bean
+    public FilterRegistrationBean<ConcurrencyLimitFilter> concurrencyLimitFilter(ConcurrencyLimitProperties properties,
+                                                                                 MeterRegistry meterRegistry) {
+        Map<String, AdaptiveConcurrencyLimiter> limiters = new LinkedHashMap<>();
+        for (String group : GROUPS) {
+            ConcurrencyLimitProperties.Budget budget = properties.getBudgets()
+                    .getOrDefault(group, new ConcurrencyLimitProperties.Budget());
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(budget.getInitialLimit(),
+                    budget.getMinLimit(), budget.getMaxLimit(), budget.getLatencyThreshold().toNanos(),
+                    properties.getBackoffRatio(), properties.getBackoffWindow().toNanos());
+            Gauge.builder("http.concurrency.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                    .tag("group", group)
+                    .register(meterRegistry);
+            Gauge.builder("http.concurrency.in-flight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                    .tag("group", group)
+                    .register(meterRegistry);
+            FunctionCounter.builder("http.concurrency.rejected", limiter, AdaptiveConcurrencyLimiter::getRejected)
+                    .tag("group", group)
+                    .register(meterRegistry);
+            limiters.put(group, limiter);
+        }
+        FilterRegistrationBean<ConcurrencyLimitFilter> registration = new FilterRegistrationBean<>(
+                new ConcurrencyLimitFilter(limiters, properties.getRetryAfter().toSeconds()));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 1);
+        return registration;
+    }
+
+}
@@ -0,0 +1,87 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.AdaptiveConcurrencyLimiter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Фильтр, стоящий перед всей цепочкой (в том числе перед Spring Session и Spring Security), который пропускает
+ * запрос дальше только если в бюджете его группы есть свободное место. Иначе сразу отвечает
+ * "503 Service Unavailable" с заголовком "Retry-After", не занимая поток Tomcat ожиданием.
+ * Запросы вне групп (статика, корень сайта и т.п.) не ограничиваются.
+ * <p>
+ * Список пользователей админа ("GET /admin/users") отдаётся порциями во время рендеринга, и его время зависит
+ * от числа пользователей и скорости клиента, а не от загрузки БД. Поэтому у него своя группа со своим порогом
+ * задержки - иначе каждая его загрузка снижала бы лимит остальных страниц админа.
+ *
+ * @see AdaptiveConcurrencyLimiter
+ */
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+    public static final String LOGIN = "login";
+    public static final String REGISTRATION = "registration";
+    public static final String USER = "user";
+    public static final String ADMIN = "admin";
+    public static final String ADMIN_USERS = "admin-users";
+
+    private final Map<String, AdaptiveConcurrencyLimiter> limiters;
+    private final String retryAfterSeconds;
+
+    public ConcurrencyLimitFilter(Map<String, AdaptiveConcurrencyLimiter> limiters, long retryAfterSeconds) {
+        this.limiters = limiters;
+        this.retryAfterSeconds = String.valueOf(retryAfterSeconds);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        AdaptiveConcurrencyLimiter limiter = limiters.get(groupOf(request));
+        if (limiter == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        if (!limiter.tryAcquire()) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader("Retry-After", retryAfterSeconds);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, response);
+            failed = response.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR.value();
+        } finally {
+            limiter.release(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Группа запроса по пути. Вход - это только отправка формы логина, саму страницу входа не ограничиваю.
+     */
+    private static String groupOf(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (path.equals("/login") && "POST".equals(request.getMethod())) {
+            return LOGIN;
+        }
+        if (path.startsWith("/registration")) {
+            return REGISTRATION;
+        }
+        if (path.equals("/admin/users") && "GET".equals(request.getMethod())) {
+            return ADMIN_USERS;
+        }
+        if (path.startsWith("/admin")) {
+            return ADMIN;
+        }
+        if (path.startsWith("/user")) {
+            return USER;
+        }
+        return null;
+    }
+
+}
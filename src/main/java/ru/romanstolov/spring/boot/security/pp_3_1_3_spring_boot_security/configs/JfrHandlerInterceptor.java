@@ -0,0 +1,47 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.JfrEvents;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Отмечает обработку запроса методами контроллеров событием JFR "ControllerHandlerEvent" - от входа
+ * в обработчик до конца рендеринга страницы.
+ */
+public class JfrHandlerInterceptor implements HandlerInterceptor {
+    private static final String EVENT_ATTRIBUTE = JfrHandlerInterceptor.class.getName() + ".EVENT";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (handler instanceof HandlerMethod) {
+            JfrEvents.ControllerHandlerEvent event = new JfrEvents.ControllerHandlerEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                request.setAttribute(EVENT_ATTRIBUTE, event);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        if (!(request.getAttribute(EVENT_ATTRIBUTE) instanceof JfrEvents.ControllerHandlerEvent event)) {
+            return;
+        }
+        request.removeAttribute(EVENT_ATTRIBUTE);
+        event.end();
+        if (event.shouldCommit()) {
+            HandlerMethod handlerMethod = (HandlerMethod) handler;
+            event.handler = handlerMethod.getBeanType().getSimpleName() + "." + handlerMethod.getMethod().getName();
+            event.httpMethod = request.getMethod();
+            event.status = response.getStatus();
+            event.usernameHash = JfrEvents.usernameHash(request.getRemoteUser());
+            event.commit();
+        }
+    }
+
+}
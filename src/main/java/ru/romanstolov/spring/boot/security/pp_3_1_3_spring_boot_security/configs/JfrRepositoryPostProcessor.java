@@ -0,0 +1,54 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.repository.Repository;
+import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.JfrEvents;
+
+/**
+ * Добавляет во все прокси репозиториев Spring Data перехватчик, отмечающий каждый вызов событием JFR
+ * "RepositoryCallEvent". Перехватчик ставится первым в цепочку: последний перехватчик Spring Data сам
+ * выполняет запрос и дальше по цепочке не передаёт.
+ */
+@Component
+public class JfrRepositoryPostProcessor implements BeanPostProcessor {
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof Repository<?, ?> && bean instanceof Advised advised && !advised.isFrozen()) {
+            advised.addAdvice(0, new JfrRepositoryInterceptor(beanName));
+        }
+        return bean;
+    }
+
+    private static class JfrRepositoryInterceptor implements MethodInterceptor {
+        private final String repository;
+
+        private JfrRepositoryInterceptor(String repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            JfrEvents.RepositoryCallEvent event = new JfrEvents.RepositoryCallEvent();
+            if (!event.isEnabled()) {
+                return invocation.proceed();
+            }
+            event.begin();
+            try {
+                return invocation.proceed();
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.repository = repository;
+                    event.method = invocation.getMethod().getName();
+                    event.commit();
+                }
+            }
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
 
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -17,13 +18,20 @@ public class MvcConfig implements WebMvcConfigurer {
      * <p>
      * МОИ ДЕЙСТВИЯ:
      * - Врубил перенаправление урла "/user" на вьюху "user.html"
-     * - Врубил перенаправление урла "/admin" на вьюху "admin.html"
      * - Врубил перенаправление урла "/user" на вьюху "index.html"
+     * - Урл "/admin" теперь обрабатывает "PeopleController" (страница со статистикой по пользователям)
      */
     public void addViewControllers(ViewControllerRegistry registry) {
-        registry.addViewController("/admin").setViewName("admin/admin");
         registry.addViewController("/user").setViewName("user/user");
         registry.addViewController("/").setViewName("index");
     }
 
+    /**
+     * Подключил перехватчик, отмечающий обработку запросов контроллерами событиями JFR.
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new JfrHandlerInterceptor());
+    }
+
 }
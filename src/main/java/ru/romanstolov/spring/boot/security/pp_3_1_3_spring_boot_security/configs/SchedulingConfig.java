@@ -0,0 +1,16 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Фоновые задачи по расписанию ("@Scheduled": outbox, статистика, отметки входов, проверка реплик и т.д.).
+ * Выключаются свойством "app.scheduling.enabled=false" - например, в тренировочном запуске AppCDS
+ * (профиль "cds-training").
+ */
+@Configuration
+@EnableScheduling
+@ConditionalOnProperty(prefix = "app.scheduling", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class SchedulingConfig {
+}
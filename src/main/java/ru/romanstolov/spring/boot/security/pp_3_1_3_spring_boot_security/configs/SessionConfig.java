@@ -0,0 +1,44 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.GenericConversionService;
+import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.core.serializer.support.SerializingConverter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.SecurityContextSerializer;
+
+/**
+ * Настройка внешнего хранилища HTTP-сессий (Spring Session).
+ * <p>
+ * Само хранилище выбирается свойством "spring.session.store-type" в "application.properties" (по умолчанию
+ * JDBC - сессии лежат в таблицах "SPRING_SESSION*" и общие для всех узлов). Там же настроены запись только
+ * изменённых атрибутов и пакетная очистка просроченных сессий по расписанию.
+ * Здесь только подменяю сериализацию атрибутов на компактную.
+ *
+ * @see SecurityContextSerializer
+ */
+@Configuration
+public class SessionConfig implements BeanClassLoaderAware {
+    private ClassLoader classLoader;
+
+    @Override
+    public void setBeanClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Spring Session JDBC ищет бин сервиса конвертации именно с таким именем и через него переводит
+     * атрибуты сессии в "byte[]" и обратно.
+     */
+    @Bean("springSessionConversionService")
+    public ConversionService springSessionConversionService() {
+        SecurityContextSerializer serializer = new SecurityContextSerializer(classLoader);
+        GenericConversionService conversionService = new GenericConversionService();
+        conversionService.addConverter(Object.class, byte[].class, new SerializingConverter(serializer));
+        conversionService.addConverter(byte[].class, Object.class, new DeserializingConverter(serializer));
+        return conversionService;
+    }
+
+}
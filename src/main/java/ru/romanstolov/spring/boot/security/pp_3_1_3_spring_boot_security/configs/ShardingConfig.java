@@ -0,0 +1,159 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRing;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Включается свойством "app.sharding.enabled=true". Пользователи (таблицы "users", "users_roles", а также
+ * их "outbox" и копия справочника ролей) разносятся по нескольким БД, всё остальное остаётся в домашнем шарде.
+ * <p>
+ * Идентификаторы пользователей уникальны по всем шардам: шард со слотом "s" выдаёт "id" вида
+ * "s + 1 + k * id-stride". Для MySQL это настраивается переменными сессии "auto_increment_*", для других БД -
+ * перезапуском счётчика "id" таблицы "users" после создания схемы (в том числе созданной Hibernate
+ * в домашнем шарде).
+ * <p>
+ * Несовместимо с маршрутизацией на реплики и с "spring.jpa.open-in-view": открытый на весь запрос контекст
+ * персистентности держит соединение с первым шардом, к которому обратился запрос.
+ *
+ * @see ShardRouter
+ * @see ShardRoutingDataSource
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "app.sharding", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(ShardingProperties.class)
+public class ShardingConfig {
+
+    @Bean
+    public ShardRoutingDataSource shardRoutingDataSource(DataSourceProperties dataSourceProperties,
+                                                         ShardingProperties shardingProperties,
+                                                         ResourceLoader resourceLoader,
+                                                         @Value("${app.datasource.routing.enabled:false}")
+                                                         boolean replicaRoutingEnabled,
+                                                         @Value("${spring.jpa.open-in-view:true}")
+                                                         boolean openInView) {
+        if (replicaRoutingEnabled) {
+            throw new IllegalStateException("Шардирование нельзя включать вместе с app.datasource.routing");
+        }
+        if (openInView) {
+            throw new IllegalStateException("При шардировании нужно выключить spring.jpa.open-in-view");
+        }
+        List<ShardingProperties.Shard> shardProperties = shardingProperties.getShards();
+        if (shardProperties.isEmpty()) {
+            throw new IllegalStateException("Не задан ни один шард в app.sharding.shards");
+        }
+        Map<String, DataSource> shards = new LinkedHashMap<>();
+        for (int i = 0; i < shardProperties.size(); i++) {
+            ShardingProperties.Shard shard = shardProperties.get(i);
+            HikariDataSource dataSource = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .driverClassName(dataSourceProperties.determineDriverClassName())
+                    .url(shard.getUrl() != null ? shard.getUrl() : dataSourceProperties.determineUrl())
+                    .username(shard.getUrl() != null ? shard.getUsername()
+                            : dataSourceProperties.determineUsername())
+                    .password(shard.getUrl() != null ? shard.getPassword()
+                            : dataSourceProperties.determinePassword())
+                    .build();
+            if (isMySql(dataSource)) {
+                dataSource.setConnectionInitSql("SET @@session.auto_increment_increment = "
+                        + shardingProperties.getIdStride() + ", @@session.auto_increment_offset = "
+                        + (slotOf(shard, i) + 1));
+            }
+            if (i > 0 && shardingProperties.isInitializeSchema()) {
+                new ResourceDatabasePopulator(resourceLoader.getResource(shardingProperties.getSchemaLocation()))
+                        .execute(dataSource);
+            }
+            shards.put(nameOf(shard, i), dataSource);
+        }
+        return new ShardRoutingDataSource(shards, nameOf(shardProperties.get(0), 0));
+    }
+
+    /**
+     * Именно этот источник данных видят JPA, Spring Session и все остальные.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ShardRoutingDataSource shardRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(shardRoutingDataSource);
+    }
+
+    /**
+     * Шаг и начало счётчика "id" в таблице "users" каждого шарда, кроме MySQL. Счётчик перезапускается
+     * со следующего после уже выданных "id" значения своего слота. Выполняется после создания всех бинов,
+     * то есть когда Hibernate уже построил таблицы домашнего шарда, но до "CommandLineRunner"-ов.
+     */
+    @Bean
+    public SmartInitializingSingleton shardIdSequences(ShardRoutingDataSource shardRoutingDataSource,
+                                                       ShardingProperties shardingProperties) {
+        return () -> {
+            List<ShardingProperties.Shard> shardProperties = shardingProperties.getShards();
+            int idStride = shardingProperties.getIdStride();
+            for (int i = 0; i < shardProperties.size(); i++) {
+                DataSource dataSource = shardRoutingDataSource.getResolvedDataSources()
+                        .get(nameOf(shardProperties.get(i), i));
+                if (isMySql(dataSource)) {
+                    continue;
+                }
+                JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+                Long maxId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM users", Long.class);
+                jdbcTemplate.execute("ALTER TABLE users ALTER COLUMN id SET INCREMENT BY " + idStride
+                        + " RESTART WITH " + nextId(maxId, slotOf(shardProperties.get(i), i), idStride));
+            }
+        };
+    }
+
+    @Bean
+    public ShardRouter shardRouter(ShardingProperties shardingProperties) {
+        List<ShardingProperties.Shard> shardProperties = shardingProperties.getShards();
+        Map<Integer, String> shardBySlot = new LinkedHashMap<>();
+        for (int i = 0; i < shardProperties.size(); i++) {
+            int slot = slotOf(shardProperties.get(i), i);
+            if (slot >= shardingProperties.getIdStride()
+                    || shardBySlot.put(slot, nameOf(shardProperties.get(i), i)) != null) {
+                throw new IllegalStateException("Слот шарда " + slot + " повторяется или не меньше id-stride");
+            }
+        }
+        return new ShardRouter(new ShardRing(shardBySlot.values()), shardBySlot, shardingProperties.getIdStride(),
+                shardingProperties.isRebalancing());
+    }
+
+    /**
+     * Наименьший "id" слота "slot", больший "maxId".
+     */
+    static long nextId(long maxId, int slot, int idStride) {
+        long first = slot + 1;
+        return maxId < first ? first : first + ((maxId - first) / idStride + 1) * idStride;
+    }
+
+    private static boolean isMySql(DataSource dataSource) {
+        return dataSource instanceof HikariDataSource hikari && hikari.getJdbcUrl().startsWith("jdbc:mysql:");
+    }
+
+    private static String nameOf(ShardingProperties.Shard shard, int index) {
+        return shard.getName() != null ? shard.getName() : "shard-" + index;
+    }
+
+    private static int slotOf(ShardingProperties.Shard shard, int index) {
+        return shard.getSlot() != null ? shard.getSlot() : index;
+    }
+
+}
@@ -5,6 +5,7 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.LoginTracker;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -13,6 +14,11 @@ import java.util.Set;
 
 @Component
 public class SuccessUserHandler implements AuthenticationSuccessHandler {
+    private final LoginTracker loginTracker;
+
+    public SuccessUserHandler(LoginTracker loginTracker) {
+        this.loginTracker = loginTracker;
+    }
 
     /**
      * * ИСХОДНЫЕ ДАННЫЕ В ЗАДАЧЕ !!!
@@ -33,6 +39,7 @@ public class SuccessUserHandler implements AuthenticationSuccessHandler {
      * МОИ ДЕЙСТВИЯ:
      * - Настроил отлов в хендлере в таком порядке: ADMIN->USER->"/". (ADMIN точно должен быть первым
      * так как есть пользователи с ролями "ROLE_ADMIN" и "ROLE_USER" одновременно в утилитном классе.
+     * - Отмечаю вход пользователя в "LoginTracker" (в памяти, в БД уходит пакетом позже).
      * !!!!!
      * Убрать ниже комменты в коде перед отправкой на проверку!
      */
@@ -40,6 +47,7 @@ public class SuccessUserHandler implements AuthenticationSuccessHandler {
     public void onAuthenticationSuccess(HttpServletRequest httpServletRequest,
                                         HttpServletResponse httpServletResponse,
                                         Authentication authentication) throws IOException {
+        loginTracker.recordLogin(authentication.getName());
         Set<String> roles = AuthorityUtils.authorityListToSet(authentication.getAuthorities());
         System.out.println("* Хэндлер роли получил");
         if (roles.contains("ROLE_ADMIN")) {
@@ -1,5 +1,6 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -9,17 +10,26 @@ import org.springframework.security.config.annotation.web.configuration.WebSecur
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.PersistentRememberMeServices;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserServiceImpl;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.JfrPasswordEncoder;
 
 @Configuration
 //@EnableWebSecurity(debug = true)
 @EnableWebSecurity
 public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     private final SuccessUserHandler successUserHandler;
+    private final ObjectProvider<PersistentRememberMeServices> rememberMeServices;
 
+    /**
+     * Сервис "Запомнить меня" зависит от "UserServiceImpl", а тот - от шифровщика паролей из этого же класса,
+     * поэтому он берётся лениво, уже при настройке "HttpSecurity".
+     */
     @Autowired
-    public WebSecurityConfig(SuccessUserHandler successUserHandler) {
+    public WebSecurityConfig(SuccessUserHandler successUserHandler,
+                             ObjectProvider<PersistentRememberMeServices> rememberMeServices) {
         this.successUserHandler = successUserHandler;
+        this.rememberMeServices = rememberMeServices;
     }
 
     /**
@@ -55,9 +65,10 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
      * <p>
      * МОИ ДЕЙСТВИЯ:
      * - Разрешил всем доступ к урлам: "/registration", "/index", "/";
-     * - Разрешил доступ пользователям с ролью "ROLE_ADMIN" к урлам "/admin/**";
+     * - Разрешил доступ пользователям с ролью "ROLE_ADMIN" к урлам "/admin/**" и к метрикам "/actuator/**";
      * - Разрешил доступ пользователям с ролями "ROLE_ADMIN" и "ROLE_USER" к урлам "/user/**";
-     * - Запретил все остальные урлы для не авторизированных пользователей.
+     * - Запретил все остальные урлы для не авторизированных пользователей;
+     * - Включил постоянный вход "Запомнить меня" (галочка на странице логина), см. "PersistentRememberMeServices".
      */
     @Override
     protected void configure(HttpSecurity http) throws Exception {
@@ -65,7 +76,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .antMatchers("/registration", "/index", "/")
                 .not().fullyAuthenticated()
-                .antMatchers("/admin/**").hasAuthority("ROLE_ADMIN")
+                .antMatchers("/admin/**", "/actuator/**").hasAuthority("ROLE_ADMIN")
                 .antMatchers("/user/**").hasAnyAuthority("ROLE_ADMIN", "ROLE_USER")
                 .anyRequest().authenticated()
                 .and()
@@ -75,18 +86,23 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
                 .and()
                 .logout()
                 .logoutSuccessUrl("/")
-                .permitAll();
+                .permitAll()
+                .and()
+                .rememberMe()
+                .rememberMeServices(rememberMeServices.getObject());
     }
 
     /**
      * Метод возвращает бин шифровщика для паролей
      * Используется мною в "UserServiceImpl" в методе "public void save(User user)":
+     * BCrypt обёрнут так, чтобы каждое кодирование и проверка пароля были видны в записи JFR.
      *
      * @see UserServiceImpl#save(User)
+     * @see JfrPasswordEncoder
      */
     @Bean
     public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        return new JfrPasswordEncoder(new BCryptPasswordEncoder());
     }
 
 }
@@ -0,0 +1,67 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.FlightRecorderService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+
+/**
+ * Контроллер администратора для записи Java Flight Recorder: запуск записи и её остановка со скачиванием
+ * ".jfr"-файла. Доступ только для "ROLE_ADMIN" (урлы "/admin/**").
+ * Если запись уже идёт (или, наоборот, не шла), админ возвращается на свою страницу с сообщением "jfrMessage".
+ */
+@Controller
+public class FlightRecorderController {
+    private final FlightRecorderService flightRecorderService;
+
+    @Autowired
+    public FlightRecorderController(FlightRecorderService flightRecorderService) {
+        this.flightRecorderService = flightRecorderService;
+    }
+
+    @PostMapping(value = "/admin/jfr/start")
+    public String startRecording(RedirectAttributes redirectAttributes) throws IOException, ParseException {
+        if (!flightRecorderService.start()) {
+            redirectAttributes.addFlashAttribute("jfrMessage", "Запись JFR уже идёт - сначала остановите её.");
+        }
+        return "redirect:/admin";
+    }
+
+    /**
+     * Временный файл записи открывается с "DELETE_ON_CLOSE" - удалится сам, как только будет отдан клиенту.
+     * Метод возвращает либо файл ("ResponseEntity"), либо имя представления с редиректом - Spring MVC выбирает
+     * обработчик по фактическому типу результата.
+     */
+    @PostMapping(value = "/admin/jfr/stop")
+    public Object stopRecording(RedirectAttributes redirectAttributes) throws IOException {
+        Path file = flightRecorderService.stop();
+        if (file == null) {
+            redirectAttributes.addFlashAttribute("jfrMessage", "Запись JFR не запущена.");
+            return "redirect:/admin";
+        }
+        long size = Files.size(file);
+        Resource resource = new InputStreamResource(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE));
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(size)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(file.getFileName().toString())
+                        .build()
+                        .toString())
+                .body(resource);
+    }
+
+}
@@ -1,6 +1,10 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.controllers;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -9,11 +13,19 @@ import org.springframework.ui.Model;
 import org.springframework.validation.BindingResult;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserChangeStream;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserServiceImpl;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserStatistics;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ChunkedUserIterable;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UserValidator;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UsernameConstraint;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -26,13 +38,19 @@ import java.util.List;
  */
 @Controller
 public class PeopleController {
+    private static final int USERS_CHUNK_SIZE = 200;
     private final UserServiceImpl userService;
     private final UserValidator userValidator;
+    private final UserChangeStream userChangeStream;
+    private final UserStatistics userStatistics;
 
     @Autowired
-    public PeopleController(UserServiceImpl userService, UserValidator userValidator) {
+    public PeopleController(UserServiceImpl userService, UserValidator userValidator,
+                            UserChangeStream userChangeStream, UserStatistics userStatistics) {
         this.userService = userService;
         this.userValidator = userValidator;
+        this.userChangeStream = userChangeStream;
+        this.userStatistics = userStatistics;
     }
 
     /**
@@ -46,8 +64,9 @@ public class PeopleController {
     /**
      * Метод сохраняющий нового пользователя в БД со страницы регистрации нового пользователя на сайте.
      * По умолчанию автоматически присваивается новому пользователю при регистрации на сайте роль "ROLE_USER".
-     * Ещё дополнительно реализована валидация пользователя по уникальности имени (логина). Если ошибки при
-     * вводе имени нового пользователя, то возврат обратно на форму регистрации!
+     * Уникальность имени (логина) проверяет сама БД: пользователь сразу вставляется, а если такое имя уже
+     * занято - нарушение уникального индекса превращается в ошибку поля "username". Пароль из базы утёкших
+     * паролей тоже отклоняется. Если ошибки при вводе нового пользователя, то возврат обратно на форму регистрации!
      */
     @PutMapping(value = "/registration")
     public String registrationPutUser(@Validated @ModelAttribute(value = "registrUser") User registrUser,
@@ -56,11 +75,10 @@ public class PeopleController {
         Collection<Role> roles = new ArrayList<>();
         roles.add(role);
         registrUser.setRoles(roles);
-        userValidator.validate(registrUser, bindingResult);
-        if (bindingResult.hasErrors()) {
+        userValidator.validatePassword(registrUser, bindingResult);
+        if (bindingResult.hasErrors() || !saveUnique(registrUser, bindingResult)) {
             return "registration";
         }
-        userService.save(registrUser);
         return "redirect:/login";
     }
 
@@ -77,16 +95,50 @@ public class PeopleController {
         return "user/user";
     }
 
+    /**
+     * Метод возвращающий страницу администратора со статистикой по пользователям. Статистика берётся из
+     * счётчиков в памяти, к БД при показе страницы запросов нет.
+     *
+     * @see UserStatistics
+     */
+    @GetMapping(value = "/admin")
+    public String getAdminPage(Model model) {
+        model.addAttribute("statistics", userStatistics.snapshot());
+        return "admin/admin";
+    }
+
     /**
      * Метод администратора возвращающий список всех пользователей и саму форму.
+     * Список не собирается целиком заранее: в модель кладу "ленивый" источник, который Thymeleaf читает
+     * порциями прямо во время рендеринга, а перед каждой следующей порцией уже готовые строки таблицы
+     * сбрасываются клиенту.
+     *
+     * @see ChunkedUserIterable
      */
     @GetMapping(value = "/admin/users")
-    public String getAllUsers(Model model) {
-        List<User> listUsers = userService.findAll();
+    public String getAllUsers(Model model, HttpServletResponse response) {
+        Iterable<User> listUsers = new ChunkedUserIterable(userService, USERS_CHUNK_SIZE, () -> {
+            try {
+                response.flushBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
         model.addAttribute("listUsers", listUsers);
+        model.addAttribute("listAllRoles", userService.getListRole());
         return "admin/crud/users";
     }
 
+    /**
+     * Метод администратора - подписка на поток изменений пользователей (Server-Sent Events).
+     * Страница со списком пользователей по этим событиям сама обновляет, добавляет и удаляет строки таблицы
+     * вместо полной перезагрузки.
+     */
+    @GetMapping(value = "/admin/users/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamUserChanges() {
+        return userChangeStream.subscribe();
+    }
+
     /**
      * Метод администратора возвращающий форму регистрации нового пользователя.
      * Подгрузил полный список всех возможных ролей для выбора на форме разных вариантов
@@ -104,18 +156,17 @@ public class PeopleController {
      * Метод администратора сохраняющий нового пользователя в БД с формы регистрации нового пользователя.
      * После добавления пользователя в БД делаю редирект обратно на страницу админа со списком всех
      * пользователей.
-     * Выполняется предварительная проверка на наличие пользователя в БД с таким же Username как и у вновь
-     * регистрируемого пользователя (уникальность логина в БД). Если ошибки при вводе имени нового пользователя,
-     * то возврат обратно на форму регистрации!
+     * Уникальность логина проверяет сама БД при вставке (см. "saveUnique()"), пароль проверяется по базе
+     * утёкших паролей. Если ошибки при вводе нового пользователя, то возврат обратно на форму регистрации!
      */
     @PutMapping(value = "/admin/users")
     public String putUser(@Validated @ModelAttribute(value = "newUser") User newUser,
-                          BindingResult bindingResult) {
-        userValidator.validate(newUser, bindingResult);
-        if (bindingResult.hasErrors()) {
+                          BindingResult bindingResult, Model model) {
+        userValidator.validatePassword(newUser, bindingResult);
+        if (bindingResult.hasErrors() || !saveUnique(newUser, bindingResult)) {
+            model.addAttribute("listAllRoles", userService.getListRole());
             return "admin/crud/user-new";
         }
-        userService.save(newUser);
         return "redirect:/admin/users";
     }
 
@@ -137,26 +188,118 @@ public class PeopleController {
      * Метод администратора сохраняющий в БД измененную информацию о пользователе с формы редактирования.
      * После сохранения отредактированного пользователя делаю редирект обратно на страницу админа со списком
      * всех пользователей.
+     * Если пока форма была открыта пользователя успел изменить другой администратор (устарела версия), то
+     * ничего не перезаписываю: отвечаю статусом 409 и снова показываю форму, где рядом с каждым расходящимся
+     * полем выведено текущее значение из БД. Версию в форме обновляю до текущей - повторная отправка формы
+     * уже осознанно сохранит выбранные значения.
      */
     @PatchMapping(value = "/admin/users/{id}")
-    public String patchUser(@Validated @ModelAttribute(value = "editUser") User editUser) {
-        userService.save(editUser);
+    public String patchUser(@Validated @ModelAttribute(value = "editUser") User editUser,
+                            BindingResult bindingResult, Model model, HttpServletResponse response) {
+        if (bindingResult.hasErrors()) {
+            model.addAttribute("listAllRoles", userService.getListRole());
+            return "admin/crud/user-id-edit";
+        }
+        String rawPassword = editUser.getPassword();
+        try {
+            if (!saveUnique(editUser, bindingResult)) {
+                model.addAttribute("listAllRoles", userService.getListRole());
+                return "admin/crud/user-id-edit";
+            }
+        } catch (ObjectOptimisticLockingFailureException e) {
+            User conflictUser = userService.getById(editUser.getId());
+            if (conflictUser == null) {
+                return "redirect:/admin/users";
+            }
+            editUser.setPassword(rawPassword);
+            editUser.setVersion(conflictUser.getVersion());
+            bindingResult.reject("", "Пользователя уже изменил другой администратор! Сравните значения "
+                    + "и сохраните ещё раз.");
+            model.addAttribute("conflictUser", conflictUser);
+            model.addAttribute("listAllRoles", userService.getListRole());
+            response.setStatus(HttpStatus.CONFLICT.value());
+            return "admin/crud/user-id-edit";
+        }
         return "redirect:/admin/users";
     }
 
     /**
      * Метод администратора удаляющий пользователя из БД.
-     * Использовал "id" удаляемого пользователя для создания нового пользователя и затем отправки его
-     * с этим установленным "id" в сервис на удаление.
+     * Удаление идёт через массовую операцию с единственным "id" - так пользователь с ролями удаляется
+     * двумя DELETE без предварительной загрузки самого пользователя.
      * После удаления пользователя по "id" делаю редирект обратно на страницу админа со списком всех
      * пользователей.
      */
     @DeleteMapping(value = "/admin/users/{id}")
     public String deleteUser(@PathVariable("id") Long id) {
-        User user = new User();
-        user.setId(id);
-        userService.delete(user);
+        userService.deleteAllById(List.of(id));
+        return "redirect:/admin/users";
+    }
+
+    /**
+     * Метод администратора удаляющий сразу всех отмеченных в списке пользователей.
+     */
+    @DeleteMapping(value = "/admin/users")
+    public String deleteUsers(@RequestParam(value = "ids", required = false) List<Long> ids) {
+        if (ids != null) {
+            userService.deleteAllById(ids);
+        }
+        return "redirect:/admin/users";
+    }
+
+    /**
+     * Метод администратора выдающий выбранную роль всем отмеченным в списке пользователям.
+     */
+    @PatchMapping(value = "/admin/users/roles/grant")
+    public String grantRole(@RequestParam("roleId") Long roleId,
+                            @RequestParam(value = "ids", required = false) List<Long> ids) {
+        if (ids != null) {
+            userService.grantRole(roleId, ids);
+        }
         return "redirect:/admin/users";
     }
 
+    /**
+     * Метод администратора отзывающий выбранную роль у всех отмеченных в списке пользователей.
+     */
+    @PatchMapping(value = "/admin/users/roles/revoke")
+    public String revokeRole(@RequestParam("roleId") Long roleId,
+                             @RequestParam(value = "ids", required = false) List<Long> ids) {
+        if (ids != null) {
+            userService.revokeRole(roleId, ids);
+        }
+        return "redirect:/admin/users";
+    }
+
+    /**
+     * Метод администратора возвращающий доступ отмеченным пользователям, отключённым за давностью входа.
+     */
+    @PatchMapping(value = "/admin/users/reactivate")
+    public String reactivateUsers(@RequestParam(value = "ids", required = false) List<Long> ids) {
+        if (ids != null) {
+            userService.reactivate(ids);
+        }
+        return "redirect:/admin/users";
+    }
+
+    /**
+     * Сохраняет пользователя одним INSERT/UPDATE без предварительной проверки имени. Если имя уже занято
+     * (сработал уникальный индекс), то возвращает "false" с ошибкой поля "username" в "bindingResult" и
+     * возвращает в форму введённый пароль вместо его хэша. Прочие ошибки целостности пробрасываются дальше.
+     */
+    private boolean saveUnique(User user, BindingResult bindingResult) {
+        String rawPassword = user.getPassword();
+        try {
+            userService.save(user);
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            if (!UsernameConstraint.isViolatedBy(e)) {
+                throw e;
+            }
+            user.setPassword(rawPassword);
+            userValidator.rejectDuplicateUsername(bindingResult);
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,54 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Постоянный токен "Запомнить меня": одна запись на устройство (серию).
+ * Сам токен в БД не хранится - только его SHA-256, так что утечка таблицы не даёт войти под пользователем.
+ * При каждом автоматическом входе токен серии меняется, а "lastUsed" обновляется.
+ */
+@Entity
+@Table(name = "remember_me_tokens", indexes = {
+        @Index(name = "idx_remember_me_username", columnList = "username"),
+        @Index(name = "idx_remember_me_last_used", columnList = "last_used")
+})
+public class RememberMeToken {
+    @Id
+    @Column(length = 64)
+    private String series;
+    @Column(nullable = false)
+    private String username;
+    @Column(name = "token_hash", nullable = false, length = 64)
+    private String tokenHash;
+    @Column(name = "last_used", nullable = false)
+    private LocalDateTime lastUsed;
+
+    public RememberMeToken() {
+
+    }
+
+    public RememberMeToken(String series, String username, String tokenHash, LocalDateTime lastUsed) {
+        this.series = series;
+        this.username = username;
+        this.tokenHash = tokenHash;
+        this.lastUsed = lastUsed;
+    }
+
+    public String getSeries() {
+        return series;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getTokenHash() {
+        return tokenHash;
+    }
+
+    public LocalDateTime getLastUsed() {
+        return lastUsed;
+    }
+
+}
@@ -46,6 +46,15 @@ public class Role implements GrantedAuthority {
         this.name = name;
     }
 
+    /**
+     * Копия роли без списка пользователей - для "User.copy()".
+     */
+    public Role copy() {
+        Role copy = new Role(name);
+        copy.id = id;
+        return copy;
+    }
+
     public Long getId() {
         return id;
     }
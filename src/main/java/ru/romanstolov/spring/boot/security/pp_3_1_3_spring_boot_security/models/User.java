@@ -4,9 +4,12 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.InitiateUtils;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UsernameConstraint;
 
 import javax.persistence.*;
 import javax.validation.constraints.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -44,10 +47,27 @@ import java.util.stream.Collectors;
  * - В двунаправленные отношения добавил методы синхронизации "addRole()" и "removeRole()" для поддержания
  * согласованности ссылок. Чтобы не было ситуации, когда у пользователя есть такая-то роль в коллекции,
  * а у роли нет в коллекции этого пользователя.
+ * <p>
+ * - Добавил поле версии "@Version" для оптимистической блокировки. Версия приходит обратно скрытым полем формы
+ * редактирования, и если за это время пользователя успел изменить другой администратор, сохранение падает
+ * с "ObjectOptimisticLockingFailureException" вместо тихой перезаписи чужих изменений.
+ * <p>
+ * - Добавил поля последнего входа "lastLogin" и числа входов "loginCount". Через JPA они только читаются
+ * (insertable/updatable = false), а пишет их пакетно "LoginTracker", поэтому ни форма редактирования,
+ * ни оптимистическая блокировка с ними не конфликтуют. По ним работают "isAccountNonExpired()" и "isEnabled()".
+ * <p>
+ * - Уникальность имени (логина) гарантирует уникальный индекс "uk_users_username" в самой БД - это надёжнее
+ * проверки "SELECT перед INSERT", которую два одновременных запроса проходят оба.
  */
 @Entity
-@Table(name = "users")
+@Table(name = "users", uniqueConstraints = @UniqueConstraint(name = UsernameConstraint.NAME,
+        columnNames = "username"))
 public class User implements UserDetails {
+    /**
+     * Сколько можно не входить на сайт, прежде чем учётная запись будет считаться просроченной и отключённой.
+     */
+    private static final Duration ACCOUNT_EXPIRATION_PERIOD = Duration.ofDays(180);
+    private static final Duration ACCOUNT_DISABLE_PERIOD = Duration.ofDays(365);
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -70,6 +90,12 @@ public class User implements UserDetails {
             inverseJoinColumns = @JoinColumn(name = "role_id")
     )
     private Collection<Role> roles = new HashSet<>();
+    @Version
+    private Long version;
+    @Column(name = "last_login", insertable = false, updatable = false)
+    private LocalDateTime lastLogin;
+    @Column(name = "login_count", insertable = false, updatable = false, columnDefinition = "integer default 0")
+    private Integer loginCount;
 
     public User() {
 
@@ -90,6 +116,21 @@ public class User implements UserDetails {
         this.roles = roles;
     }
 
+    /**
+     * Копия пользователя вместе с копиями его ролей, не связанная ни с каким контекстом персистентности:
+     * её можно отдать другому потоку, и правки копии не попадут в БД. Роли должны быть уже загружены.
+     */
+    public User copy() {
+        User copy = new User(username, surname, age, email, password, roles.stream()
+                .map(Role::copy)
+                .collect(Collectors.toCollection(HashSet::new)));
+        copy.id = id;
+        copy.version = version;
+        copy.lastLogin = lastLogin;
+        copy.loginCount = loginCount;
+        return copy;
+    }
+
     /**
      * Метод добавления роли пользователю.
      * Дополнительно идёт добавление пользователя к роли.
@@ -163,11 +204,12 @@ public class User implements UserDetails {
     }
 
     /**
-     * В этом переопределённом методе прописал "true"
+     * Учётная запись просрочена, если пользователь не входил на сайт дольше "ACCOUNT_EXPIRATION_PERIOD".
+     * Пользователь, который ещё ни разу не входил (только что зарегистрировался), не просрочен.
      */
     @Override
     public boolean isAccountNonExpired() {
-        return true;
+        return !isDormantFor(ACCOUNT_EXPIRATION_PERIOD);
     }
 
     /**
@@ -187,11 +229,17 @@ public class User implements UserDetails {
     }
 
     /**
-     * В этом переопределённом методе прописал "true"
+     * Учётная запись отключается, если пользователь не входил на сайт дольше "ACCOUNT_DISABLE_PERIOD".
+     * Сам пользователь войти уже не может, поэтому вернуть доступ может только администратор - кнопкой
+     * "Вернуть доступ" в списке пользователей (см. "UserService.reactivate()").
      */
     @Override
     public boolean isEnabled() {
-        return true;
+        return !isDormantFor(ACCOUNT_DISABLE_PERIOD);
+    }
+
+    private boolean isDormantFor(Duration period) {
+        return lastLogin != null && lastLogin.isBefore(LocalDateTime.now().minus(period));
     }
 
     public void setUsername(String username) {
@@ -234,6 +282,22 @@ public class User implements UserDetails {
         this.roles = roles;
     }
 
+    public LocalDateTime getLastLogin() {
+        return lastLogin;
+    }
+
+    public Integer getLoginCount() {
+        return loginCount;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
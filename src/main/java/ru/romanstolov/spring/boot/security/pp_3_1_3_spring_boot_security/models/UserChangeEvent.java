@@ -0,0 +1,73 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Запись "outbox"-таблицы об изменении пользователя.
+ * Пишется в той же транзакции, что и само изменение пользователя, поэтому событие есть в таблице тогда и только
+ * тогда, когда изменение закоммичено. Дальше фоновый ретранслятор читает таблицу пачками и рассылает события.
+ * В "payload" лежит JSON со строкой таблицы пользователей (без пароля).
+ */
+@Entity
+@Table(name = "user_outbox")
+public class UserChangeEvent {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    @Column(nullable = false)
+    private Long userId;
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Type type;
+    @Column(length = 2000)
+    private String payload;
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    public enum Type {
+        SAVED,
+        DELETED
+    }
+
+    public UserChangeEvent() {
+
+    }
+
+    public UserChangeEvent(Long userId, Type type, String payload) {
+        this.userId = userId;
+        this.type = type;
+        this.payload = payload;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public String toString() {
+        return "UserChangeEvent{" +
+                "id=" + id +
+                ", userId=" + userId +
+                ", type=" + type +
+                '}';
+    }
+
+}
@@ -0,0 +1,44 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.RememberMeToken;
+
+import java.time.LocalDateTime;
+
+/**
+ * Репозиторий постоянных токенов "Запомнить меня".
+ */
+@Repository
+public interface RememberMeTokenRepository extends JpaRepository<RememberMeToken, String> {
+
+    /**
+     * Смена токена серии "сравнить и заменить": обновится только если в БД всё ещё старый токен. Если серию
+     * уже сменил параллельный запрос (или другой узел), вернётся 0.
+     */
+    @Transactional
+    @Modifying
+    @Query("update RememberMeToken t set t.tokenHash = :newHash, t.lastUsed = :lastUsed "
+            + "where t.series = :series and t.tokenHash = :oldHash")
+    int rotate(@Param("series") String series, @Param("oldHash") String oldHash,
+               @Param("newHash") String newHash, @Param("lastUsed") LocalDateTime lastUsed);
+
+    @Transactional
+    @Modifying
+    @Query("delete from RememberMeToken t where t.username = :username")
+    int deleteByUsername(@Param("username") String username);
+
+    /**
+     * Удаление просроченных токенов пачкой не больше "batchSize" строк, чтобы не держать долгих блокировок
+     * на большой таблице. Вызывается в цикле, пока удаляется полная пачка.
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM remember_me_tokens WHERE last_used < :before LIMIT :batchSize", nativeQuery = true)
+    int deleteExpiredBatch(@Param("before") LocalDateTime before, @Param("batchSize") int batchSize);
+
+}
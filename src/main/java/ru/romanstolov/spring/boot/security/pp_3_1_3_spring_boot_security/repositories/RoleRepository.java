@@ -4,6 +4,9 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
 
+import java.util.List;
+import java.util.Optional;
+
 /**
  * Прикольно, что тут можно самому написывать любые методы задавая параметры метода и тип возвращаемого значения
  * при совершенно произвольном наименовании самого метода!
@@ -16,4 +19,11 @@ import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.
 @Repository
 public interface RoleRepository extends JpaRepository<Role, Long> {
 
+    /**
+     * У каждого шарда свой справочник ролей со своими "id", поэтому между шардами роли сопоставляются по имени.
+     */
+    Optional<Role> findFirstByNameOrderByIdAsc(String name);
+
+    List<Role> findAllByName(String name);
+
 }
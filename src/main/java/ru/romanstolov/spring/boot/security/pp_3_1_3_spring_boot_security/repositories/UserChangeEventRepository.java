@@ -0,0 +1,33 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Репозиторий "outbox"-таблицы изменений пользователей.
+ */
+@Repository
+public interface UserChangeEventRepository extends JpaRepository<UserChangeEvent, Long> {
+
+    List<UserChangeEvent> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    List<UserChangeEvent> findByIdLessThanEqualAndCreatedAtAfterOrderByIdAsc(Long id, LocalDateTime createdAt);
+
+    @Query("select coalesce(max(e.id), 0) from UserChangeEvent e")
+    Long findMaxId();
+
+    @Transactional
+    @Modifying
+    @Query("delete from UserChangeEvent e where e.createdAt < :before")
+    int deleteByCreatedAtBefore(@Param("before") LocalDateTime before);
+
+}
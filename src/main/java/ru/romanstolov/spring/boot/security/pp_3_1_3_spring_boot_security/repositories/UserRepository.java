@@ -1,10 +1,21 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
 
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Добавил в этом интерфейсе-репозитории метод поиска пользователя по имени-логину.
@@ -20,6 +31,95 @@ import java.util.Optional;
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
 
+    /**
+     * Поиск по имени и по "id" сразу вместе с ролями: роли нужны всем, кто ищет пользователя (вход, страницы
+     * пользователя и редактирования), а при шардировании открытого на весь запрос контекста персистентности нет,
+     * и догрузить их позже было бы нечем.
+     */
+    @EntityGraph(attributePaths = "roles")
     Optional<User> findByUsername(String username);
 
+    @Override
+    @EntityGraph(attributePaths = "roles")
+    Optional<User> findById(Long id);
+
+    /**
+     * Следующая "порция" идентификаторов пользователей после "lastId" (keyset-пагинация по первичному ключу,
+     * без OFFSET - скорость не зависит от того, насколько далеко мы ушли по таблице).
+     */
+    @Query("select u.id from User u where u.id > :lastId order by u.id")
+    List<Long> findIdsAfter(@Param("lastId") Long lastId, Pageable pageable);
+
+    /**
+     * Пользователи по списку идентификаторов сразу вместе с ролями (одним запросом, без N+1 при выводе ролей).
+     */
+    @EntityGraph(attributePaths = "roles")
+    @Query("select distinct u from User u where u.id in :ids order by u.id")
+    List<User> findAllWithRolesByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Возраст и роли пользователей для статистики на странице админа: по строке на каждую пару "пользователь -
+     * роль" (имя роли null, если ролей нет). Сущности не создаются, контекст персистентности не растёт.
+     */
+    @Query("select u.id as id, u.age as age, r.name as roleName from User u left join u.roles r where u.id in :ids")
+    List<StatisticsRow> findStatisticsRowsByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * То же по всем пользователям, потоком по возрастанию "id" - для полного пересчёта статистики. Строки читаются
+     * с сервера порциями (курсор MySQL включён "useCursorFetch" в адресе БД), вся таблица в память не грузится.
+     * Поток нужно закрывать и читать внутри транзакции.
+     */
+    @QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select u.id as id, u.age as age, r.name as roleName from User u left join u.roles r order by u.id")
+    Stream<StatisticsRow> streamAllStatisticsRows();
+
+    interface StatisticsRow {
+        Long getId();
+
+        Byte getAge();
+
+        String getRoleName();
+    }
+
+
+    /**
+     * Массовые операции одним SQL-оператором на всё множество пользователей (без предварительной загрузки
+     * сущностей). Контекст персистентности сбрасывается до и очищается после оператора, чтобы в нём не
+     * оставались устаревшие копии пользователей.
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "DELETE FROM users_roles WHERE user_id IN (:ids)", nativeQuery = true)
+    int deleteRoleLinksByUserIdIn(@Param("ids") Collection<Long> ids);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("delete from User u where u.id in :ids")
+    int deleteAllByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "INSERT INTO users_roles (user_id, role_id) "
+            + "SELECT u.id, :roleId FROM users u WHERE u.id IN (:ids) "
+            + "AND NOT EXISTS (SELECT 1 FROM users_roles ur WHERE ur.user_id = u.id AND ur.role_id = :roleId)",
+            nativeQuery = true)
+    int grantRole(@Param("roleId") Long roleId, @Param("ids") Collection<Long> ids);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "DELETE FROM users_roles WHERE role_id = :roleId AND user_id IN (:ids)", nativeQuery = true)
+    int revokeRole(@Param("roleId") Long roleId, @Param("ids") Collection<Long> ids);
+
+    /**
+     * Поднимает версию пользователей, изменённых массовой операцией в обход сущностей - чтобы открытые
+     * в этот момент формы редактирования считались устаревшими.
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update User u set u.version = u.version + 1 where u.id in :ids")
+    int incrementVersion(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Возвращает давно не входивших пользователей к жизни: "lastLogin" через сущность не пишется, поэтому
+     * сдвигается здесь, как и в "LoginTracker", прямым UPDATE.
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE users SET last_login = :now WHERE id IN (:ids)", nativeQuery = true)
+    int reactivate(@Param("ids") Collection<Long> ids, @Param("now") LocalDateTime now);
+
 }
@@ -0,0 +1,74 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * Управление записью Java Flight Recorder "по требованию" из страницы администратора.
+ * Одновременно идёт не больше одной записи. Запись идёт с настройками "profile" JDK плюс собственные
+ * события приложения (они включены по умолчанию).
+ * Запись пишется на диск кольцом: хранится не больше "app.jfr.max-age" последних событий и не больше
+ * "app.jfr.max-size" - забытая запись не заполнит диск.
+ *
+ * @see ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.JfrEvents
+ */
+@Service
+public class FlightRecorderService {
+    private final Duration maxAge;
+    private final DataSize maxSize;
+    private Recording recording;
+
+    public FlightRecorderService(@Value("${app.jfr.max-age:PT1H}") Duration maxAge,
+                                 @Value("${app.jfr.max-size:256MB}") DataSize maxSize) {
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+    }
+
+    public synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Запускает запись. Возвращает "false", если запись уже идёт.
+     */
+    public synchronized boolean start() throws IOException, ParseException {
+        if (recording != null) {
+            return false;
+        }
+        recording = new Recording(Configuration.getConfiguration("profile"));
+        recording.setName("pp_3_1_3-on-demand");
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.setMaxSize(maxSize.toBytes());
+        recording.start();
+        return true;
+    }
+
+    /**
+     * Останавливает запись и сохраняет её во временный ".jfr"-файл. Возвращает "null", если запись не шла.
+     */
+    public synchronized Path stop() throws IOException {
+        if (recording == null) {
+            return null;
+        }
+        try {
+            recording.stop();
+            Path file = Files.createTempFile("pp_3_1_3-", ".jfr");
+            recording.dump(file);
+            return file;
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+
+}
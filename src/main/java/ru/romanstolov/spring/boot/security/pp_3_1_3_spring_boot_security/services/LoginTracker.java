@@ -0,0 +1,91 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Учёт входов пользователей с отложенной записью ("write-behind").
+ * <p>
+ * Вход только обновляет запись в памяти: повторные входы одного пользователя между сбросами схлопываются
+ * в одну запись (последнее время входа и сумма входов). Раз в "flush-interval" все накопленные записи уходят
+ * в БД одним пакетным UPDATE, так что самый горячий путь - вход на сайт - не добавляет запись в БД на каждый
+ * вход. При остановке приложения остаток сбрасывается.
+ * При шардировании пакет делится по шардам пользователей (во время переноса между шардами - уходит во все).
+ */
+@Component
+public class LoginTracker {
+    private static final Log logger = LogFactory.getLog(LoginTracker.class);
+    private static final String UPDATE_SQL =
+            "UPDATE users SET last_login = ?, login_count = COALESCE(login_count, 0) + ? WHERE username = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ShardRouter shardRouter;
+    private final Map<String, PendingLogin> pending = new ConcurrentHashMap<>();
+
+    public LoginTracker(JdbcTemplate jdbcTemplate, ObjectProvider<ShardRouter> shardRouter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.shardRouter = shardRouter.getIfAvailable(ShardRouter::single);
+    }
+
+    public void recordLogin(String username) {
+        pending.merge(username, new PendingLogin(LocalDateTime.now(), 1), PendingLogin::combine);
+    }
+
+    @Scheduled(fixedDelayString = "${app.login-tracking.flush-interval:PT30S}")
+    @PreDestroy
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, PendingLogin> drained = new ConcurrentHashMap<>();
+        for (String username : pending.keySet()) {
+            PendingLogin login = pending.remove(username);
+            if (login != null) {
+                drained.put(username, login);
+            }
+        }
+        Map<String, Map<String, PendingLogin>> drainedByShard = new HashMap<>();
+        drained.forEach((username, login) -> {
+            List<String> shards = shardRouter.isRebalancing() ? shardRouter.getShards()
+                    : List.of(shardRouter.shardForUsername(username));
+            for (String shard : shards) {
+                drainedByShard.computeIfAbsent(shard, s -> new HashMap<>()).put(username, login);
+            }
+        });
+        drainedByShard.forEach((shard, shardLogins) -> {
+            List<Object[]> batch = new ArrayList<>(shardLogins.size());
+            shardLogins.forEach((username, login) ->
+                    batch.add(new Object[]{Timestamp.valueOf(login.lastLogin()), login.count(), username}));
+            try {
+                shardRouter.runOn(shard, () -> jdbcTemplate.batchUpdate(UPDATE_SQL, batch));
+            } catch (DataAccessException e) {
+                logger.warn("Не удалось записать входы пользователей, повторю при следующем сбросе", e);
+                shardLogins.forEach((username, login) -> pending.merge(username, login, PendingLogin::combine));
+            }
+        });
+    }
+
+    private record PendingLogin(LocalDateTime lastLogin, int count) {
+
+        private PendingLogin combine(PendingLogin other) {
+            LocalDateTime latest = lastLogin.isAfter(other.lastLogin) ? lastLogin : other.lastLogin;
+            return new PendingLogin(latest, count + other.count);
+        }
+    }
+
+}
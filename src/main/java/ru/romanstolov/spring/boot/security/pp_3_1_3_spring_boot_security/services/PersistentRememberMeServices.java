@@ -0,0 +1,247 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
+import org.springframework.security.web.authentication.rememberme.CookieTheftException;
+import org.springframework.security.web.authentication.rememberme.InvalidCookieException;
+import org.springframework.security.web.authentication.rememberme.RememberMeAuthenticationException;
+import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.RememberMeToken;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.RememberMeTokenRepository;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Постоянный вход "Запомнить меня" с ротацией токенов (серия + токен).
+ * <p>
+ * После истечения сессии пользователь входит по cookie без формы логина - без проверки пароля BCrypt.
+ * Токен в cookie сверяется с SHA-256 из таблицы "remember_me_tokens" сравнением за постоянное время и при каждом
+ * входе заменяется на новый. Если пришёл правильный номер серии, но старый токен, значит cookie украли и уже
+ * использовали: все серии пользователя удаляются.
+ * <p>
+ * Браузер после истечения сессии часто шлёт сразу несколько запросов со старым cookie. Первый сменит токен, а
+ * остальные выглядели бы как кража. Поэтому недавно проверенные серии лежат в ограниченном LRU-кэше вместе с
+ * предыдущим токеном: в течение "grace-period" после смены старый токен ещё принимается (без повторной смены).
+ * Запрос, который проверил старый токен одновременно с первым, но проиграл ему смену в БД, тоже принимается по
+ * кэшу: смена токена и запись в кэш идут под блокировкой серии, так что проигравший видит результат первого.
+ * Параллельные запросы на разные узлы так не сходятся - кэш у каждого узла свой.
+ * Этот же кэш избавляет от чтения серии из БД перед сменой токена.
+ * Просроченные токены удаляются по расписанию пачками.
+ */
+@Component
+public class PersistentRememberMeServices extends AbstractRememberMeServices {
+    private static final int TOKEN_BYTES = 16;
+    private static final int ROTATION_LOCKS = 64;
+
+    private final RememberMeTokenRepository tokenRepository;
+    private final LoginTracker loginTracker;
+    private final long gracePeriodMillis;
+    private final int cleanupBatchSize;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, CachedSeries> recentSeries;
+    private final Object[] rotationLocks = new Object[ROTATION_LOCKS];
+
+    public PersistentRememberMeServices(@Value("${app.remember-me.key}") String key,
+                                        UserDetailsService userDetailsService,
+                                        RememberMeTokenRepository tokenRepository, LoginTracker loginTracker,
+                                        @Value("${app.remember-me.validity:P14D}") Duration validity,
+                                        @Value("${app.remember-me.grace-period:PT5S}") Duration gracePeriod,
+                                        @Value("${app.remember-me.cache-size:10000}") int cacheSize,
+                                        @Value("${app.remember-me.cleanup-batch-size:1000}") int cleanupBatchSize) {
+        super(key, userDetailsService);
+        this.tokenRepository = tokenRepository;
+        this.loginTracker = loginTracker;
+        this.gracePeriodMillis = gracePeriod.toMillis();
+        this.cleanupBatchSize = cleanupBatchSize;
+        this.recentSeries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSeries> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        setTokenValiditySeconds((int) validity.getSeconds());
+        for (int i = 0; i < ROTATION_LOCKS; i++) {
+            rotationLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    protected void onLoginSuccess(HttpServletRequest request, HttpServletResponse response,
+                                  Authentication successfulAuthentication) {
+        String series = generateToken();
+        String token = generateToken();
+        tokenRepository.save(new RememberMeToken(series, successfulAuthentication.getName(), sha256(token),
+                LocalDateTime.now()));
+        setCookie(new String[]{series, token}, getTokenValiditySeconds(), request, response);
+    }
+
+    @Override
+    protected UserDetails processAutoLoginCookie(String[] cookieTokens, HttpServletRequest request,
+                                                 HttpServletResponse response) {
+        if (cookieTokens.length != 2) {
+            throw new InvalidCookieException("Cookie должна содержать серию и токен");
+        }
+        String series = cookieTokens[0];
+        String presentedHash = sha256(cookieTokens[1]);
+        long now = System.currentTimeMillis();
+
+        CachedSeries cached = getCached(series);
+        if (isWithinGracePeriod(cached, presentedHash, now)) {
+            return getUserDetailsService().loadUserByUsername(cached.username());
+        }
+
+        String username;
+        if (cached != null && matches(presentedHash, cached.currentHash())
+                && now - cached.rotatedAt() < getTokenValiditySeconds() * 1000L) {
+            username = cached.username();
+        } else {
+            RememberMeToken stored = tokenRepository.findById(series)
+                    .orElseThrow(() -> new RememberMeAuthenticationException("Серия не найдена"));
+            if (!matches(presentedHash, stored.getTokenHash())) {
+                CachedSeries rotatedSeries = getCachedAfterRotation(series);
+                if (isWithinGracePeriod(rotatedSeries, presentedHash, System.currentTimeMillis())) {
+                    return getUserDetailsService().loadUserByUsername(rotatedSeries.username());
+                }
+                tokenRepository.deleteByUsername(stored.getUsername());
+                forgetUser(stored.getUsername());
+                throw new CookieTheftException("Токен серии уже использован - похоже на кражу cookie");
+            }
+            if (stored.getLastUsed().plusSeconds(getTokenValiditySeconds()).isBefore(LocalDateTime.now())) {
+                tokenRepository.deleteById(series);
+                throw new RememberMeAuthenticationException("Срок действия токена истёк");
+            }
+            username = stored.getUsername();
+        }
+
+        String newToken = generateToken();
+        String newHash = sha256(newToken);
+        boolean rotated;
+        synchronized (rotationLock(series)) {
+            rotated = tokenRepository.rotate(series, presentedHash, newHash, LocalDateTime.now()) == 1;
+            if (rotated) {
+                synchronized (recentSeries) {
+                    recentSeries.put(series, new CachedSeries(username, newHash, presentedHash, now));
+                }
+            }
+        }
+        if (!rotated) {
+            CachedSeries rotatedSeries = getCachedAfterRotation(series);
+            if (isWithinGracePeriod(rotatedSeries, presentedHash, System.currentTimeMillis())) {
+                return getUserDetailsService().loadUserByUsername(rotatedSeries.username());
+            }
+            throw new RememberMeAuthenticationException("Токен серии уже сменился в параллельном запросе");
+        }
+        setCookie(new String[]{series, newToken}, getTokenValiditySeconds(), request, response);
+        loginTracker.recordLogin(username);
+        return getUserDetailsService().loadUserByUsername(username);
+    }
+
+    /**
+     * При выходе удаляется только серия этого устройства, на остальных устройствах пользователь остаётся
+     * запомненным.
+     */
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        String cookie = extractRememberMeCookie(request);
+        if (cookie != null && !cookie.isEmpty()) {
+            try {
+                String series = decodeCookie(cookie)[0];
+                forgetSeries(series);
+                if (tokenRepository.existsById(series)) {
+                    tokenRepository.deleteById(series);
+                }
+            } catch (InvalidCookieException e) {
+                logger.debug("Не удалось разобрать cookie при выходе", e);
+            }
+        }
+        super.logout(request, response, authentication);
+    }
+
+    @Scheduled(fixedDelayString = "${app.remember-me.cleanup-interval:PT1H}")
+    public void deleteExpiredTokens() {
+        LocalDateTime before = LocalDateTime.now().minusSeconds(getTokenValiditySeconds());
+        int deleted;
+        do {
+            deleted = tokenRepository.deleteExpiredBatch(before, cleanupBatchSize);
+        } while (deleted == cleanupBatchSize);
+    }
+
+    private Object rotationLock(String series) {
+        return rotationLocks[Math.floorMod(series.hashCode(), ROTATION_LOCKS)];
+    }
+
+    /**
+     * Серия из кэша, когда токен в БД уже сменил другой запрос: блокировка серии дожидается, пока он запишет в
+     * кэш свой результат.
+     */
+    private CachedSeries getCachedAfterRotation(String series) {
+        synchronized (rotationLock(series)) {
+            return getCached(series);
+        }
+    }
+
+    private boolean isWithinGracePeriod(CachedSeries cached, String presentedHash, long now) {
+        return cached != null && matches(presentedHash, cached.previousHash())
+                && now - cached.rotatedAt() < gracePeriodMillis;
+    }
+
+    private CachedSeries getCached(String series) {
+        synchronized (recentSeries) {
+            return recentSeries.get(series);
+        }
+    }
+
+    private void forgetSeries(String series) {
+        synchronized (recentSeries) {
+            recentSeries.remove(series);
+        }
+    }
+
+    private void forgetUser(String username) {
+        synchronized (recentSeries) {
+            recentSeries.values().removeIf(cached -> cached.username().equals(username));
+        }
+    }
+
+    private String generateToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static boolean matches(String presentedHash, String expectedHash) {
+        return MessageDigest.isEqual(presentedHash.getBytes(StandardCharsets.US_ASCII),
+                expectedHash.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String sha256(String token) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    /**
+     * Недавно проверенная серия: текущий хэш токена и хэш, который был до последней смены.
+     */
+    private record CachedSeries(String username, String currentHash, String previousHash, long rotatedAt) {
+    }
+
+}
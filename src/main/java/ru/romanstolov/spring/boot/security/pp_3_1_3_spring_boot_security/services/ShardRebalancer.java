@@ -0,0 +1,288 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Перенос пользователей в шард, который им назначает текущее кольцо, - нужен после добавления шарда.
+ * <p>
+ * Порядок добавления шарда:
+ * 1. Добавить шард в "app.sharding.shards" со свободным слотом и включить "app.sharding.rebalancing=true" (пока
+ * пользователи не перенесены, поиск по имени при промахе идёт во все шарды; поиск по "id" переноса не замечает,
+ * потому что "id" указывает на шард, где пользователь лежит фактически);
+ * 2. Запустить перенос: "app.sharding.rebalance-on-startup=true" запускает его в фоне при старте приложения;
+ * 3. После сообщения о завершении выключить оба свойства.
+ * <p>
+ * Пользователь переносится двумя транзакциями: копия в целевом шарде (новый "id" из его последовательности,
+ * роли сопоставляются по имени), затем удаление в исходном. Вместе с копией в целевом шарде пишется строка
+ * журнала переносов "shard_moves" (исходный шард и "id"). Перенос можно прервать и запустить заново: уже
+ * скопированный пользователь находится по журналу, копия обновляется по исходному, и исходный удаляется.
+ * Журнал очищается в конце успешного запуска.
+ * <p>
+ * Уникальность имени база проверяет только внутри шарда, поэтому за время переноса в целевом шарде может
+ * зарегистрироваться другой пользователь с тем же именем (новые пользователи пишутся сразу туда, куда указывает
+ * новое кольцо). Такой пользователь в журнале не значится: перенос его не трогает, а исходный пользователь
+ * остаётся на месте, и об этом пишется предупреждение - конфликт имён разбирает администратор. Чтобы конфликтов
+ * не было, "UserServiceImpl.save()" при включённом "app.sharding.rebalancing" проверяет имя во всех шардах.
+ * <p>
+ * Исходный пользователь удаляется, только если его "version" не изменилась с момента копирования. Иначе (его
+ * успели отредактировать) копия обновляется заново и удаление повторяется. Если же пользователя за это время
+ * удалили или переименовали так, что ему нужен другой шард, копия удаляется, а переименованного перенесёт
+ * следующий запуск. "version" не меняют только отметки входа ("last_login", "login_count") - их правка
+ * в этот промежуток может потеряться.
+ */
+@Component
+@ConditionalOnProperty(prefix = "app.sharding", name = "enabled", havingValue = "true")
+public class ShardRebalancer implements ApplicationRunner {
+    private static final Log logger = LogFactory.getLog(ShardRebalancer.class);
+    private static final String SELECT_COLUMNS = "SELECT id, username, surname, age, email, password, version, "
+            + "last_login, login_count FROM users ";
+    private static final String SELECT_USERS_SQL = SELECT_COLUMNS + "WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_USER_SQL = SELECT_COLUMNS + "WHERE id = ?";
+    private static final String CREATE_MOVES_SQL = "CREATE TABLE IF NOT EXISTS shard_moves ("
+            + "source_shard VARCHAR(64) NOT NULL, source_id BIGINT NOT NULL, target_id BIGINT NOT NULL, "
+            + "PRIMARY KEY (source_shard, source_id))";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final ShardRouter shardRouter;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final boolean rebalanceOnStartup;
+
+    public ShardRebalancer(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                           ShardRouter shardRouter, ObjectMapper objectMapper,
+                           @Value("${app.sharding.rebalance-batch-size:500}") int batchSize,
+                           @Value("${app.sharding.rebalance-on-startup:false}") boolean rebalanceOnStartup) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.shardRouter = shardRouter;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.rebalanceOnStartup = rebalanceOnStartup;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (rebalanceOnStartup) {
+            Thread thread = new Thread(this::rebalance, "shard-rebalancer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return сколько пользователей перенесено из каждого шарда
+     */
+    public Map<String, Integer> rebalance() {
+        for (String shard : shardRouter.getShards()) {
+            shardRouter.runOn(shard, () -> jdbcTemplate.execute(CREATE_MOVES_SQL));
+        }
+        Map<String, Integer> moved = new LinkedHashMap<>();
+        for (String source : shardRouter.getShards()) {
+            moved.put(source, rebalanceShard(source));
+        }
+        for (String shard : shardRouter.getShards()) {
+            shardRouter.runOn(shard, () -> jdbcTemplate.update("DELETE FROM shard_moves"));
+        }
+        logger.info("Перенос пользователей между шардами завершён: " + moved);
+        return moved;
+    }
+
+    private int rebalanceShard(String source) {
+        int moved = 0;
+        long lastId = 0;
+        List<UserRow> batch;
+        do {
+            long afterId = lastId;
+            batch = shardRouter.callOn(source, () ->
+                    jdbcTemplate.query(SELECT_USERS_SQL, ShardRebalancer::mapUser, afterId, batchSize));
+            for (UserRow user : batch) {
+                String target = shardRouter.shardForUsername(user.username());
+                if (!target.equals(source) && move(user, source, target)) {
+                    moved++;
+                }
+                lastId = user.id();
+            }
+        } while (batch.size() == batchSize);
+        return moved;
+    }
+
+    /**
+     * @return "false", если исходный пользователь остался на месте (имя в целевом шарде занято другим
+     * пользователем) или исчез из исходного шарда, пока шёл перенос
+     */
+    private boolean move(UserRow user, String source, String target) {
+        UserRow current = user;
+        while (current != null && shardRouter.shardForUsername(current.username()).equals(target)) {
+            UserRow copiedUser = current;
+            List<String> roleNames = shardRouter.callOn(source, () -> jdbcTemplate.queryForList(
+                    "SELECT r.name FROM users_roles ur JOIN roles r ON r.id = ur.role_id WHERE ur.user_id = ?",
+                    String.class, copiedUser.id()));
+            Boolean copied = shardRouter.callOn(target, () -> writeTransaction.execute(status ->
+                    copy(copiedUser, source, roleNames)));
+            if (!Boolean.TRUE.equals(copied)) {
+                logger.warn("Имя \"" + copiedUser.username() + "\" в шарде " + target + " занято другим "
+                        + "пользователем, пользователь " + copiedUser.id() + " остаётся в шарде " + source);
+                return false;
+            }
+            if (deleteSource(copiedUser, source)) {
+                return true;
+            }
+            current = shardRouter.callOn(source, () -> jdbcTemplate.query(SELECT_USER_SQL,
+                    ShardRebalancer::mapUser, copiedUser.id())).stream().findFirst().orElse(null);
+        }
+        shardRouter.runOn(target, () -> writeTransaction.executeWithoutResult(status ->
+                deleteCopy(user.id(), source)));
+        return false;
+    }
+
+    /**
+     * @return "false", если исходного пользователя с той же "version" уже нет - его изменили или удалили
+     */
+    private boolean deleteSource(UserRow user, String source) {
+        return Boolean.TRUE.equals(shardRouter.callOn(source, () -> writeTransaction.execute(status -> {
+            jdbcTemplate.update("DELETE FROM users_roles WHERE user_id = ?", user.id());
+            int deleted = user.version() == null
+                    ? jdbcTemplate.update("DELETE FROM users WHERE id = ? AND version IS NULL", user.id())
+                    : jdbcTemplate.update("DELETE FROM users WHERE id = ? AND version = ?", user.id(),
+                    user.version());
+            if (deleted == 0) {
+                status.setRollbackOnly();
+                return false;
+            }
+            saveEvent(user.id(), UserChangeEvent.Type.DELETED, Map.of("id", user.id()));
+            return true;
+        })));
+    }
+
+    /**
+     * @return "true", если пользователь скопирован сейчас или уже был скопирован раньше (тогда копия обновлена)
+     */
+    private boolean copy(UserRow user, String source, List<String> roleNames) {
+        List<Long> copied = jdbcTemplate.queryForList(
+                "SELECT target_id FROM shard_moves WHERE source_shard = ? AND source_id = ?", Long.class,
+                source, user.id());
+        if (!copied.isEmpty()) {
+            Long id = copied.get(0);
+            int updated = jdbcTemplate.update("UPDATE users SET username = ?, surname = ?, age = ?, email = ?, "
+                            + "password = ?, version = ?, last_login = ?, login_count = ? WHERE id = ?",
+                    user.username(), user.surname(), user.age(), user.email(), user.password(), user.version(),
+                    user.lastLogin(), user.loginCount(), id);
+            // копию уже удалили в целевом шарде - удаление исходного доводит это до конца
+            if (updated > 0) {
+                jdbcTemplate.update("DELETE FROM users_roles WHERE user_id = ?", id);
+                saveRoles(id, roleNames);
+                saveEvent(id, UserChangeEvent.Type.SAVED, savedPayload(id, user, roleNames));
+            }
+            return true;
+        }
+        List<Long> existing = jdbcTemplate.queryForList("SELECT id FROM users WHERE username = ?", Long.class,
+                user.username());
+        if (!existing.isEmpty()) {
+            return false;
+        }
+        Long id = insert("INSERT INTO users (username, surname, age, email, password, version, last_login, "
+                        + "login_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?)", user.username(), user.surname(), user.age(),
+                user.email(), user.password(), user.version(), user.lastLogin(), user.loginCount());
+        saveRoles(id, roleNames);
+        saveEvent(id, UserChangeEvent.Type.SAVED, savedPayload(id, user, roleNames));
+        jdbcTemplate.update("INSERT INTO shard_moves (source_shard, source_id, target_id) VALUES (?, ?, ?)",
+                source, user.id(), id);
+        return true;
+    }
+
+    /**
+     * Убирает из целевого шарда копию пользователя, которого больше не нужно сюда переносить.
+     */
+    private void deleteCopy(long sourceId, String source) {
+        List<Long> copied = jdbcTemplate.queryForList(
+                "SELECT target_id FROM shard_moves WHERE source_shard = ? AND source_id = ?", Long.class,
+                source, sourceId);
+        for (Long id : copied) {
+            jdbcTemplate.update("DELETE FROM users_roles WHERE user_id = ?", id);
+            jdbcTemplate.update("DELETE FROM users WHERE id = ?", id);
+            saveEvent(id, UserChangeEvent.Type.DELETED, Map.of("id", id));
+        }
+        jdbcTemplate.update("DELETE FROM shard_moves WHERE source_shard = ? AND source_id = ?", source, sourceId);
+    }
+
+    private void saveRoles(Long userId, List<String> roleNames) {
+        for (String roleName : roleNames) {
+            List<Long> roleIds = jdbcTemplate.queryForList("SELECT id FROM roles WHERE name = ? ORDER BY id",
+                    Long.class, roleName);
+            Long roleId = roleIds.isEmpty() ? insert("INSERT INTO roles (name) VALUES (?)", roleName)
+                    : roleIds.get(0);
+            jdbcTemplate.update("INSERT INTO users_roles (user_id, role_id) VALUES (?, ?)", userId, roleId);
+        }
+    }
+
+    private static Map<String, Object> savedPayload(Long id, UserRow user, List<String> roleNames) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", id);
+        row.put("username", user.username());
+        row.put("surname", user.surname());
+        row.put("age", user.age());
+        row.put("email", user.email());
+        row.put("roles", roleNames);
+        return row;
+    }
+
+    private Long insert(String sql, Object... args) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql, new String[]{"id"});
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            return statement;
+        }, keyHolder);
+        return keyHolder.getKey().longValue();
+    }
+
+    private void saveEvent(Long userId, UserChangeEvent.Type type, Object payload) {
+        try {
+            jdbcTemplate.update("INSERT INTO user_outbox (user_id, type, payload, created_at) VALUES (?, ?, ?, ?)",
+                    userId, type.name(), objectMapper.writeValueAsString(payload),
+                    Timestamp.valueOf(LocalDateTime.now()));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static UserRow mapUser(ResultSet rs, int rowNum) throws SQLException {
+        return new UserRow(rs.getLong("id"), rs.getString("username"), rs.getString("surname"),
+                rs.getObject("age", Byte.class), rs.getString("email"), rs.getString("password"),
+                rs.getObject("version", Long.class), rs.getTimestamp("last_login"),
+                rs.getObject("login_count", Integer.class));
+    }
+
+    private record UserRow(long id, String username, String surname, Byte age, String email, String password,
+                           Long version, Timestamp lastLogin, Integer loginCount) {
+    }
+
+}
@@ -0,0 +1,133 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.UserChangeEventRepository;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Фоновый ретранслятор "outbox"-таблицы изменений пользователей.
+ * <p>
+ * Каждый узел читает таблицу пачками от своего курсора (последний отправленный "id") и раздаёт события:
+ * подписчикам страницы администратора через "UserChangeStream" и внутри приложения как Spring-событие
+ * "UserChangeEvent" (на него могут подписаться кэши, чтобы точечно сбрасывать записи).
+ * <p>
+ * "id" выдаётся при вставке, а видна запись становится при коммите, поэтому транзакция с меньшим "id" может
+ * закоммититься позже той, что уже прошла мимо курсора. Поэтому каждый опрос ещё раз перечитывает записи не
+ * старше "app.outbox.lookback" ниже курсора, а уже отправленные за это окно "id" помнит и повторно не раздаёт.
+ * Окно должно перекрывать самую долгую транзакцию, пишущую в "outbox" (и расхождение часов узлов: "created_at"
+ * ставит записывающий узел), - запись, закоммиченная позже, будет пропущена.
+ * <p>
+ * Записи из таблицы не удаляются при отправке - их читают все узлы, - а вычищаются по возрасту.
+ * При шардировании "outbox" лежит в каждом шарде рядом с пользователями (и пишется в той же транзакции),
+ * поэтому курсор у узла свой на каждый шард.
+ *
+ * @see UserChangeStream
+ */
+@Component
+public class UserChangeRelay {
+    private final UserChangeEventRepository userChangeEventRepository;
+    private final UserChangeStream userChangeStream;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int batchSize;
+    private final Duration retention;
+    private final Duration lookback;
+    private final ShardRouter shardRouter;
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    public UserChangeRelay(UserChangeEventRepository userChangeEventRepository, UserChangeStream userChangeStream,
+                           ApplicationEventPublisher eventPublisher,
+                           @Value("${app.outbox.batch-size:500}") int batchSize,
+                           @Value("${app.outbox.retention:PT1H}") Duration retention,
+                           @Value("${app.outbox.lookback:PT10S}") Duration lookback,
+                           ObjectProvider<ShardRouter> shardRouter) {
+        this.userChangeEventRepository = userChangeEventRepository;
+        this.userChangeStream = userChangeStream;
+        this.eventPublisher = eventPublisher;
+        this.batchSize = batchSize;
+        this.retention = retention;
+        this.lookback = lookback;
+        this.shardRouter = shardRouter.getIfAvailable(ShardRouter::single);
+    }
+
+    /**
+     * Новый узел начинает с конца таблицы: старые изменения уже видны в БД при загрузке страницы. Записи окна
+     * ниже курсора тоже считаются отправленными.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        for (String shard : shardRouter.getShards()) {
+            cursors.put(shard, shardRouter.callOn(shard, () -> {
+                Cursor cursor = new Cursor(userChangeEventRepository.findMaxId());
+                userChangeEventRepository.findByIdLessThanEqualAndCreatedAtAfterOrderByIdAsc(cursor.lastId,
+                        LocalDateTime.now().minus(lookback))
+                        .forEach(event -> cursor.delivered.put(event.getId(), event.getCreatedAt()));
+                return cursor;
+            }));
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.outbox.poll-interval:PT1S}")
+    public synchronized void relay() {
+        for (String shard : shardRouter.getShards()) {
+            shardRouter.runOn(shard, () -> relayShard(shard));
+        }
+    }
+
+    private void relayShard(String shard) {
+        Cursor cursor = cursors.get(shard);
+        LocalDateTime since = LocalDateTime.now().minus(lookback);
+        cursor.delivered.values().removeIf(createdAt -> createdAt.isBefore(since));
+        userChangeEventRepository.findByIdLessThanEqualAndCreatedAtAfterOrderByIdAsc(cursor.lastId, since)
+                .forEach(event -> deliver(cursor, event));
+        List<UserChangeEvent> batch;
+        do {
+            batch = userChangeEventRepository.findByIdGreaterThanOrderByIdAsc(cursor.lastId,
+                    PageRequest.of(0, batchSize));
+            for (UserChangeEvent event : batch) {
+                deliver(cursor, event);
+                cursor.lastId = event.getId();
+            }
+        } while (batch.size() == batchSize);
+    }
+
+    private void deliver(Cursor cursor, UserChangeEvent event) {
+        if (cursor.delivered.putIfAbsent(event.getId(), event.getCreatedAt()) == null) {
+            userChangeStream.publish(event);
+            eventPublisher.publishEvent(event);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.outbox.cleanup-interval:PT10M}")
+    public void purge() {
+        LocalDateTime before = LocalDateTime.now().minus(retention);
+        for (String shard : shardRouter.getShards()) {
+            shardRouter.runOn(shard, () -> userChangeEventRepository.deleteByCreatedAtBefore(before));
+        }
+    }
+
+    /**
+     * Курсор шарда: последний прочитанный "id" и "id" отправленных записей окна со временем их создания.
+     */
+    private static class Cursor {
+        private final Map<Long, LocalDateTime> delivered = new HashMap<>();
+        private long lastId;
+
+        private Cursor(long lastId) {
+            this.lastId = lastId;
+        }
+    }
+
+}
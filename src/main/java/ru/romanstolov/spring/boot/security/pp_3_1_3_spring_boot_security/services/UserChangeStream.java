@@ -0,0 +1,120 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Рассылка изменений пользователей подписчикам по Server-Sent Events (страница администратора со списком
+ * пользователей).
+ * <p>
+ * У каждого подписчика своя ограниченная очередь. Ретранслятор только кладёт в неё события и никогда не ждёт
+ * клиента, а отправкой занимается небольшой общий пул потоков. Если медленный клиент не успевает и очередь
+ * переполнилась, его очередь очищается и ему отправляется событие "reset" - страница просто перезагружает
+ * список целиком.
+ */
+@Component
+public class UserChangeStream {
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService senders = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "user-change-sse");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int bufferSize;
+    private final long timeoutMillis;
+
+    public UserChangeStream(@Value("${app.outbox.subscriber-buffer-size:256}") int bufferSize,
+                            @Value("${app.outbox.subscriber-timeout:PT30M}") Duration timeout) {
+        this.bufferSize = bufferSize;
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    public SseEmitter subscribe() {
+        Subscriber subscriber = new Subscriber(new SseEmitter(timeoutMillis));
+        subscriber.emitter.onCompletion(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        return subscriber.emitter;
+    }
+
+    public void publish(UserChangeEvent event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        senders.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    private final class Subscriber {
+        private final SseEmitter emitter;
+        private final BlockingQueue<UserChangeEvent> queue = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean overflowed;
+
+        private Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        private void offer(UserChangeEvent event) {
+            if (!queue.offer(event)) {
+                overflowed = true;
+                queue.clear();
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                senders.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                if (overflowed) {
+                    overflowed = false;
+                    emitter.send(SseEmitter.event().name("reset").data(""));
+                }
+                UserChangeEvent event;
+                while ((event = queue.poll()) != null) {
+                    emitter.send(SseEmitter.event()
+                            .id(String.valueOf(event.getId()))
+                            .name(event.getType().name().toLowerCase())
+                            .data(event.getPayload()));
+                }
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(this);
+                queue.clear();
+                return;
+            } finally {
+                draining.set(false);
+            }
+            if (overflowed || !queue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+}
@@ -32,11 +32,28 @@ public interface UserService extends UserDetailsService {
 
     List<User> findAll();
 
+    /**
+     * Порция пользователей (вместе с ролями) с идентификаторами больше "lastId", упорядоченная по "id".
+     * Используется для потокового вывода длинного списка пользователей.
+     */
+    List<User> findChunkAfter(Long lastId, int chunkSize);
+
     void save(User user);
 
     User getById(Long id);
 
     void delete(User deleteUser);
 
+    /**
+     * Массовые операции администратора. Возвращают количество затронутых строк.
+     */
+    int deleteAllById(Collection<Long> ids);
+
+    int grantRole(Long roleId, Collection<Long> userIds);
+
+    int revokeRole(Long roleId, Collection<Long> userIds);
+
+    int reactivate(Collection<Long> userIds);
+
 }
 
@@ -1,33 +1,105 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.RoleRepository;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.UserChangeEventRepository;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.UserRepository;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.JfrEvents;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ReadWriteRoutingDataSource;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.SingleFlight;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UserValidator;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UsernameConstraint;
 
+import javax.persistence.EntityManager;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
+/**
+ * При шардировании ("app.sharding.enabled") каждый метод сначала выбирает шард через "ShardRouter": по имени
+ * или "id" пользователя - один шард, и тогда вся транзакция метода (включая "outbox" и статистику) идёт в него;
+ * списки - параллельно со всех шардов со слиянием по "id"; массовые операции - отдельной транзакцией на каждый
+ * затронутый шард. Без шардирования тот же код работает с единственным шардом.
+ * <p>
+ * Одновременные поиски одного и того же пользователя по имени или "id" (шторм входов, обновления страниц)
+ * схлопываются в один запрос к БД ("SingleFlight"); сколько запросов так сэкономлено, видно в метриках
+ * "user.lookup.loads" и "user.lookup.coalesced". Схлопываются только поиски, которые ушли бы в одно и то же
+ * место: читающий с primary (вход, чтение сразу после своей записи) не получит результат, прочитанный с реплики.
+ */
 @Service
 @Transactional(readOnly = true)
 public class UserServiceImpl implements UserService {
     private final UserRepository userRepository;
     private final RoleRepository roleRepository;
     private final PasswordEncoder passwordEncoder;
+    private final EntityManager entityManager;
+    private final UserChangeEventRepository userChangeEventRepository;
+    private final ObjectMapper objectMapper;
+    private final UserStatistics userStatistics;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate readOnlyTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final BooleanSupplier readingFromPrimary;
+    private final SingleFlight<Lookup<String>, Optional<User>> lookupsByUsername;
+    private final SingleFlight<Lookup<Long>, Optional<User>> lookupsById;
 
     @Autowired
-    public UserServiceImpl(UserRepository userRepository, RoleRepository roleRepository, PasswordEncoder passwordEncoder) {
+    public UserServiceImpl(UserRepository userRepository, RoleRepository roleRepository, PasswordEncoder passwordEncoder,
+                           EntityManager entityManager, UserChangeEventRepository userChangeEventRepository,
+                           ObjectMapper objectMapper, UserStatistics userStatistics,
+                           PlatformTransactionManager transactionManager, ObjectProvider<ShardRouter> shardRouter,
+                           ObjectProvider<ReadWriteRoutingDataSource> readWriteRouting,
+                           ObjectProvider<MeterRegistry> meterRegistry,
+                           @Value("${app.user-lookup.coalescing-timeout:PT5S}") Duration coalescingTimeout) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.passwordEncoder = passwordEncoder;
+        this.entityManager = entityManager;
+        this.userChangeEventRepository = userChangeEventRepository;
+        this.objectMapper = objectMapper;
+        this.userStatistics = userStatistics;
+        this.shardRouter = shardRouter.getIfAvailable(ShardRouter::single);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        ReadWriteRoutingDataSource routing = readWriteRouting.getIfAvailable();
+        this.readingFromPrimary = routing != null ? routing::isReadingFromPrimary : () -> true;
+        this.lookupsByUsername = new SingleFlight<>(coalescingTimeout, user -> user.map(User::copy));
+        this.lookupsById = new SingleFlight<>(coalescingTimeout, user -> user.map(User::copy));
+        meterRegistry.ifAvailable(registry -> {
+            registerLookupMetrics(registry, "username", lookupsByUsername);
+            registerLookupMetrics(registry, "id", lookupsById);
+        });
     }
 
     /**
@@ -37,12 +109,31 @@ public class UserServiceImpl implements UserService {
      * пользователя по имени "UserValidator". Естественно, пришлось это обёртывание учитывать в текущем классе
      * в переопределённом методе
      * "public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException".
+     * Пока идёт перенос пользователей между шардами, не найденного в "своём" шарде ищу во всех.
+     * Одновременные поиски одного имени делят один запрос. Дождавшиеся чужого запроса получают каждый свою
+     * отсоединённую копию пользователя ("User.copy()"), а не сущность из чужого контекста персистентности.
      * <p>
      * @see UserValidator
      */
     @Override
     public Optional<User> findByUsername(String username) {
-        return userRepository.findByUsername(username);
+        if (!isCoalescingAllowed()) {
+            return loadByUsername(username);
+        }
+        return lookupsByUsername.load(lookupOf(username), () -> loadByUsername(username));
+    }
+
+    private Optional<User> loadByUsername(String username) {
+        Optional<User> optionalUser = shardRouter.callOn(shardRouter.shardForUsername(username),
+                () -> userRepository.findByUsername(username));
+        if (optionalUser.isPresent() || !shardRouter.isRebalancing()) {
+            return optionalUser;
+        }
+        return shardRouter.scatter(shard -> readOnlyTransaction.execute(status ->
+                        userRepository.findByUsername(username)))
+                .stream()
+                .flatMap(Optional::stream)
+                .findFirst();
     }
 
     /**
@@ -57,19 +148,35 @@ public class UserServiceImpl implements UserService {
      * Реализовал метод интерфейса "UserDetailsService" унаследованного через интерфейс "UserService"
      * Этот метод возвращает UserDetails - обёрнутого пользователя текущей сессии.
      * Обеспечил генерацию требуемого исключения "UsernameNotFoundException".
-     * В качестве User`a использовал не своего, а "спрингового".
+     * В качестве User`a использовал не своего, а "спрингового". Признаки "enabled" и "accountNonExpired"
+     * переношу из своего пользователя - их проверяет Spring Security при входе.
+     * Пользователь ищется в БД один раз (раньше было два одинаковых запроса), время поиска отмечается
+     * событием JFR "UserLookupEvent".
+     * Транзакция здесь пишущая, но до поиска в ней ничего не записано, поэтому поиск схлопывается
+     * с одновременными такими же, как и в "findByUsername", - но только с теми, что тоже читают с primary:
+     * пароль не должен сверяться с отстающей реплики.
      * <p>
      * ?????????????????????????????? Нужна ли здесь @Transactional? Нужно спросить у ментора.
      */
     @Override
     @Transactional
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        if (findByUsername(username).isEmpty()) {
+        JfrEvents.UserLookupEvent event = new JfrEvents.UserLookupEvent();
+        event.begin();
+        Optional<User> optionalUser = lookupsByUsername.load(lookupOf(username), () -> loadByUsername(username));
+        event.end();
+        if (event.shouldCommit()) {
+            event.usernameHash = JfrEvents.usernameHash(username);
+            event.found = optionalUser.isPresent();
+            event.commit();
+        }
+        if (optionalUser.isEmpty()) {
             throw new UsernameNotFoundException("Пользователь с таким именем не найден в БД!");
         }
-        User user = findByUsername(username).get();
+        User user = optionalUser.get();
         return new org.springframework.security.core.userdetails.User(user.getUsername(), user.getPassword(),
-                user.getRoles());
+                user.isEnabled(), user.isAccountNonExpired(), user.isCredentialsNonExpired(),
+                user.isAccountNonLocked(), user.getRoles());
     }
 
     /**
@@ -79,16 +186,83 @@ public class UserServiceImpl implements UserService {
      */
     @Override
     public Optional<User> findById(Long id) {
-        Optional<User> optionalUser = userRepository.findById(id);
+        if (!isCoalescingAllowed()) {
+            return loadById(id);
+        }
+        return lookupsById.load(lookupOf(id), () -> loadById(id));
+    }
+
+    private Optional<User> loadById(Long id) {
+        Optional<User> optionalUser = shardRouter.callOn(shardRouter.shardForId(id),
+                () -> userRepository.findById(id));
         return optionalUser;
     }
 
+    /**
+     * Внутри пишущей транзакции поиск идёт сам: чужая загрузка не увидела бы ещё не закоммиченных изменений
+     * этой транзакции.
+     */
+    private static boolean isCoalescingAllowed() {
+        return !TransactionSynchronizationManager.isActualTransactionActive()
+                || TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+
+    private <K> Lookup<K> lookupOf(K key) {
+        return new Lookup<>(key, readingFromPrimary.getAsBoolean());
+    }
+
+    private static void registerLookupMetrics(MeterRegistry registry, String key, SingleFlight<?, ?> lookups) {
+        FunctionCounter.builder("user.lookup.loads", lookups, SingleFlight::getLoads)
+                .tag("key", key)
+                .register(registry);
+        FunctionCounter.builder("user.lookup.coalesced", lookups, SingleFlight::getCoalesced)
+                .tag("key", key)
+                .register(registry);
+        FunctionCounter.builder("user.lookup.timeouts", lookups, SingleFlight::getTimeouts)
+                .tag("key", key)
+                .register(registry);
+    }
+
     /**
      * Переименовал метод и дал название как в репозитории
      */
     @Override
     public List<User> findAll() {
-        return userRepository.findAll();
+        return shardRouter.scatter(shard -> readOnlyTransaction.execute(status -> userRepository.findAll()))
+                .stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparing(User::getId))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Порция по всем шардам: каждый шард параллельно отдаёт свою порцию после "lastId", из их слияния по "id"
+     * берутся первые "chunkSize". Лишние строки просто перечитаются со следующей порцией.
+     */
+    @Override
+    public List<User> findChunkAfter(Long lastId, int chunkSize) {
+        return shardRouter.scatter(shard -> readOnlyTransaction.execute(status ->
+                        findChunkOnShard(lastId, chunkSize)))
+                .stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparing(User::getId))
+                .limit(chunkSize)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Загружаю порцию в два коротких запроса: сначала keyset-страницу идентификаторов, затем самих пользователей
+     * с ролями. Загруженных пользователей сразу отсоединяю от контекста персистентности - иначе при открытом
+     * "open-in-view" все порции копились бы в нём до конца запроса и память не была бы ограничена.
+     */
+    private List<User> findChunkOnShard(Long lastId, int chunkSize) {
+        List<Long> ids = userRepository.findIdsAfter(lastId, PageRequest.of(0, chunkSize));
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        List<User> chunk = userRepository.findAllWithRolesByIdIn(ids);
+        chunk.forEach(entityManager::detach);
+        return chunk;
     }
 
     /**
@@ -97,18 +271,72 @@ public class UserServiceImpl implements UserService {
      * Когда мы выполняем метод save() репозитория JPARepository, то для новых сущностей вызывается persist(),
      * а для уже существующих сущностей (у которых id!=null) вызывается метод merge(). (Уточнить у ментора !).
      * В методе реализовал кодирование пользовательского пароля перед помещением пользователя в БД.
+     * Если у пользователя устаревшая версия (его уже изменил кто-то другой), то при merge() или при коммите
+     * вылетит "ObjectOptimisticLockingFailureException" - обрабатывается в контроллере.
+     * В той же транзакции пишу событие изменения в "outbox"-таблицу.
+     * Для статистики на странице админа у существующего пользователя перед сохранением читаю его прежние возраст
+     * и роли (у нового пользователя "до" нет - регистрация лишнего запроса не делает).
+     * Роли пользователя перед сохранением подменяются строками справочника того шарда, куда он пишется
+     * (см. "rolesOnShard()").
+     * Пока идёт перенос между шардами, имя дополнительно проверяется во всех шардах (см. "checkUsernameFree()").
      */
     @Transactional
     @Override
     public void save(User user) {
-        String encodedPassword = passwordEncoder.encode(user.getPassword());
-        user.setPassword(encodedPassword);
-        userRepository.save(user);
+        String shard = user.getId() == null ? shardRouter.shardForUsername(user.getUsername())
+                : shardRouter.shardForId(user.getId());
+        if (shardRouter.isRebalancing()) {
+            checkUsernameFree(shard, user);
+        }
+        shardRouter.runOn(shard, () -> {
+            Map<Long, UserStatistics.Shape> before = user.getId() == null ? Map.of()
+                    : userStatistics.shapesOf(List.of(user.getId()));
+            String encodedPassword = passwordEncoder.encode(user.getPassword());
+            user.setPassword(encodedPassword);
+            user.setRoles(rolesOnShard(shard, user.getRoles()));
+            User savedUser = userRepository.save(user);
+            userChangeEventRepository.save(savedEvent(savedUser));
+            userStatistics.recordChanges(before, Map.of(savedUser.getId(), UserStatistics.Shape.of(savedUser)));
+        });
+    }
+
+    /**
+     * Уникальный индекс по имени действует только внутри шарда, а во время переноса пользователь с тем же именем
+     * может ещё лежать в старом шарде. Проверяю остальные шарды сам и бросаю ошибку с именем того же ограничения -
+     * контроллер покажет её как занятое имя (см. "UsernameConstraint.isViolatedBy()").
+     */
+    private void checkUsernameFree(String shard, User user) {
+        boolean taken = shardRouter.scatter(other -> !other.equals(shard)
+                        && Boolean.TRUE.equals(readOnlyTransaction.execute(status ->
+                        userRepository.findByUsername(user.getUsername())
+                                .filter(found -> !found.getId().equals(user.getId()))
+                                .isPresent())))
+                .contains(true);
+        if (taken) {
+            throw new DataIntegrityViolationException("Имя \"" + user.getUsername() + "\" занято в другом шарде: "
+                    + UsernameConstraint.NAME);
+        }
+    }
+
+    /**
+     * Роли приходят из формы (загружены конвертером по "id" вне транзакции и шарда), со страницы регистрации
+     * (новые объекты) или общими объектами из "InitiateUtils", уже сохранёнными предыдущим вызовом. Ни один из
+     * этих объектов нельзя отдавать в "persist", поэтому беру строки справочника текущей транзакции: в домашнем
+     * шарде - выбранную по "id", в остальных - первую с таким же именем. Роль, которой в шарде нет, заводится.
+     */
+    private Collection<Role> rolesOnShard(String shard, Collection<Role> roles) {
+        boolean homeShard = shard.equals(shardRouter.getHomeShard());
+        Collection<Role> shardRoles = new HashSet<>();
+        for (Role role : roles) {
+            Optional<Role> shardRole = homeShard && role.getId() != null ? roleRepository.findById(role.getId())
+                    : roleRepository.findFirstByNameOrderByIdAsc(role.getName());
+            shardRoles.add(shardRole.orElseGet(() -> new Role(role.getName())));
+        }
+        return shardRoles;
     }
 
     public User getById(Long id) {
-        Optional<User> optionalUser = userRepository.findById(id);
-        return optionalUser.orElse(null);
+        return findById(id).orElse(null);
     }
 
     /**
@@ -117,7 +345,172 @@ public class UserServiceImpl implements UserService {
     @Override
     @Transactional
     public void delete(User deleteUser) {
-        userRepository.delete(deleteUser);
+        shardRouter.runOn(shardRouter.shardForId(deleteUser.getId()), () -> {
+            Map<Long, UserStatistics.Shape> before = userStatistics.shapesOf(List.of(deleteUser.getId()));
+            userRepository.delete(deleteUser);
+            userChangeEventRepository.save(deletedEvent(deleteUser.getId()));
+            userStatistics.recordChanges(before, Map.of());
+        });
+    }
+
+    /**
+     * Массовые операции сами открывают по транзакции на каждый затронутый шард, поэтому общей транзакции
+     * у метода нет. При сбое на одном из шардов изменения на уже обработанных остаются.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int deleteAllById(Collection<Long> ids) {
+        int deleted = 0;
+        for (Map.Entry<String, List<Long>> shardIds : shardRouter.groupByShard(ids).entrySet()) {
+            deleted += shardRouter.callOn(shardIds.getKey(), () ->
+                    writeTransaction.execute(status -> deleteAllOnShard(shardIds.getValue())));
+        }
+        return deleted;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int grantRole(Long roleId, Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        String roleName = roleNameOf(roleId);
+        int granted = 0;
+        for (Map.Entry<String, List<Long>> shardIds : shardRouter.groupByShard(userIds).entrySet()) {
+            granted += shardRouter.callOn(shardIds.getKey(), () -> writeTransaction.execute(status ->
+                    grantRoleOnShard(shardIds.getKey(), roleId, roleName, shardIds.getValue())));
+        }
+        return granted;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int revokeRole(Long roleId, Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        String roleName = roleNameOf(roleId);
+        int revoked = 0;
+        for (Map.Entry<String, List<Long>> shardIds : shardRouter.groupByShard(userIds).entrySet()) {
+            revoked += shardRouter.callOn(shardIds.getKey(), () -> writeTransaction.execute(status ->
+                    revokeRoleOnShard(shardIds.getKey(), roleId, roleName, shardIds.getValue())));
+        }
+        return revoked;
+    }
+
+    /**
+     * Снимает с отмеченных пользователей просрочку и отключение за давностью входа (см. "User.isEnabled()"):
+     * последний вход переставляется на текущий момент. Счётчик входов не меняется.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int reactivate(Collection<Long> userIds) {
+        LocalDateTime now = LocalDateTime.now();
+        int reactivated = 0;
+        for (Map.Entry<String, List<Long>> shardIds : shardRouter.groupByShard(userIds).entrySet()) {
+            reactivated += shardRouter.callOn(shardIds.getKey(), () -> writeTransaction.execute(status ->
+                    userRepository.reactivate(shardIds.getValue(), now)));
+        }
+        return reactivated;
+    }
+
+    /**
+     * Массовое удаление пользователей: сначала их связи с ролями, затем сами пользователи - по одному
+     * DELETE на каждую таблицу вместо SELECT + DELETE на каждого пользователя.
+     */
+    private int deleteAllOnShard(Collection<Long> ids) {
+        Map<Long, UserStatistics.Shape> before = userStatistics.shapesOf(ids);
+        userRepository.deleteRoleLinksByUserIdIn(ids);
+        int deleted = userRepository.deleteAllByIdIn(ids);
+        userChangeEventRepository.saveAll(ids.stream().map(this::deletedEvent).collect(Collectors.toList()));
+        userStatistics.recordChanges(before, Map.of());
+        return deleted;
+    }
+
+    /**
+     * Массовая выдача роли одним "INSERT ... SELECT". Пользователям, у которых роль уже есть, повторно не выдаётся.
+     * Роль приходит с "id" из справочника домашнего шарда; в остальных шардах она ищется (и при отсутствии
+     * заводится) по имени.
+     */
+    private int grantRoleOnShard(String shard, Long roleId, String roleName, Collection<Long> userIds) {
+        Long shardRoleId = shard.equals(shardRouter.getHomeShard()) ? roleId
+                : roleRepository.findFirstByNameOrderByIdAsc(roleName)
+                .orElseGet(() -> roleRepository.save(new Role(roleName)))
+                .getId();
+        Map<Long, UserStatistics.Shape> before = userStatistics.shapesOf(userIds);
+        userRepository.incrementVersion(userIds);
+        int granted = userRepository.grantRole(shardRoleId, userIds);
+        saveChangedEvents(userIds, before);
+        return granted;
+    }
+
+    /**
+     * Массовый отзыв роли одним DELETE по связующей таблице "users_roles". В шардах, кроме домашнего,
+     * отзываются все роли с таким именем.
+     */
+    private int revokeRoleOnShard(String shard, Long roleId, String roleName, Collection<Long> userIds) {
+        List<Long> shardRoleIds = shard.equals(shardRouter.getHomeShard()) ? List.of(roleId)
+                : roleRepository.findAllByName(roleName).stream().map(Role::getId).collect(Collectors.toList());
+        if (shardRoleIds.isEmpty()) {
+            return 0;
+        }
+        Map<Long, UserStatistics.Shape> before = userStatistics.shapesOf(userIds);
+        userRepository.incrementVersion(userIds);
+        int revoked = 0;
+        for (Long shardRoleId : shardRoleIds) {
+            revoked += userRepository.revokeRole(shardRoleId, userIds);
+        }
+        saveChangedEvents(userIds, before);
+        return revoked;
+    }
+
+    private String roleNameOf(Long roleId) {
+        return roleRepository.findById(roleId)
+                .map(Role::getName)
+                .orElseThrow(() -> new IllegalArgumentException("Роль " + roleId + " не найдена"));
+    }
+
+    /**
+     * После массовой операции над ролями перечитываю затронутых пользователей (одним запросом вместе с ролями),
+     * чтобы в событиях была их актуальная строка. По ним же сдвигается статистика ролей.
+     */
+    private void saveChangedEvents(Collection<Long> userIds, Map<Long, UserStatistics.Shape> before) {
+        List<User> changedUsers = userRepository.findAllWithRolesByIdIn(userIds);
+        List<UserChangeEvent> events = changedUsers.stream()
+                .map(this::savedEvent)
+                .collect(Collectors.toList());
+        userChangeEventRepository.saveAll(events);
+        userStatistics.recordChanges(before, changedUsers.stream()
+                .collect(Collectors.toMap(User::getId, UserStatistics.Shape::of)));
+    }
+
+    private UserChangeEvent savedEvent(User user) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", user.getId());
+        row.put("username", user.getUsername());
+        row.put("surname", user.getSurname());
+        row.put("age", user.getAge());
+        row.put("email", user.getEmail());
+        row.put("roles", user.getRoles().stream().map(Role::getName).collect(Collectors.toList()));
+        return new UserChangeEvent(user.getId(), UserChangeEvent.Type.SAVED, toJson(row));
+    }
+
+    private UserChangeEvent deletedEvent(Long userId) {
+        return new UserChangeEvent(userId, UserChangeEvent.Type.DELETED, toJson(Map.of("id", userId)));
+    }
+
+    private String toJson(Object payload) {
+        try {
+            return objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ключ схлопывания: искомое значение и то, откуда его прочитают - с primary или с реплики.
+     */
+    private record Lookup<K>(K key, boolean fromPrimary) {
     }
 
 }
@@ -0,0 +1,256 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.UserRepository;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Статистика по пользователям для страницы администратора: всего пользователей, пользователей по ролям и
+ * распределение по возрасту (по десятилетиям).
+ * <p>
+ * Считается не запросами "COUNT ... GROUP BY" на каждый показ страницы, а счётчиками в памяти:
+ * - "UserServiceImpl" при каждом изменении передаёт состояние затронутых пользователей до и после, и после
+ * коммита транзакции счётчики сдвигаются на разницу (откаченные изменения статистику не трогают);
+ * - при старте приложения счётчики строятся заново одним потоковым проходом по таблице;
+ * - по расписанию проход повторяется и подменяет счётчики. Так исправляются расхождения из-за изменений
+ * с других узлов.
+ * Изменения, закоммиченные во время прохода, проход может не увидеть (он читает снимок БД на свой старт), а
+ * старые счётчики после подмены выбрасываются. Поэтому на время прохода изменения ещё и копятся в буфере и
+ * перед подменой применяются к новым счётчикам. Точно это только при чтении снимком (InnoDB, "REPEATABLE READ"):
+ * изменение, которое проход всё же увидел, учтётся дважды - до следующего прохода.
+ * При шардировании проход идёт по всем шардам параллельно в общие счётчики.
+ */
+@Component
+public class UserStatistics {
+    private static final Log logger = LogFactory.getLog(UserStatistics.class);
+    private static final List<String> AGE_BUCKETS = List.of("1-9", "10-19", "20-29", "30-39", "40-49", "50-59",
+            "60-69", "70-79", "80-89", "90-99", "100+", "не указан");
+
+    private final UserRepository userRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ShardRouter shardRouter;
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile Counters counters = new Counters();
+    private volatile Queue<Change> changesDuringScan;
+
+    public UserStatistics(UserRepository userRepository, PlatformTransactionManager transactionManager,
+                          ObjectProvider<ShardRouter> shardRouter) {
+        this.userRepository = userRepository;
+        this.shardRouter = shardRouter.getIfAvailable(ShardRouter::single);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Текущее состояние пользователей по идентификаторам (для "до" и "после" изменения).
+     * Пользователей, которых нет в БД, в результате нет.
+     */
+    public Map<Long, Shape> shapesOf(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Map.of();
+        }
+        Map<Long, Shape> shapes = new HashMap<>();
+        for (UserRepository.StatisticsRow row : userRepository.findStatisticsRowsByIdIn(ids)) {
+            Shape shape = shapes.computeIfAbsent(row.getId(), id -> new Shape(row.getAge(), new HashSet<>()));
+            if (row.getRoleName() != null) {
+                shape.roles().add(row.getRoleName());
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Сдвигает счётчики на разницу между состояниями пользователей "до" и "после" изменения. Внутри транзакции -
+     * только после её успешного коммита.
+     */
+    public void recordChanges(Map<Long, Shape> before, Map<Long, Shape> after) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            applyChanges(before, after);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                applyChanges(before, after);
+            }
+        });
+    }
+
+    public Snapshot snapshot() {
+        Counters current = counters;
+        Map<String, Long> usersByRole = new TreeMap<>();
+        current.usersByRole.forEach((role, count) -> {
+            if (count.sum() > 0) {
+                usersByRole.put(role, count.sum());
+            }
+        });
+        Map<String, Long> usersByAge = new LinkedHashMap<>();
+        for (int i = 0; i < AGE_BUCKETS.size(); i++) {
+            usersByAge.put(AGE_BUCKETS.get(i), current.usersByAge.get(i));
+        }
+        return new Snapshot(current.total.sum(), usersByRole, usersByAge);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        scanAndSwap();
+    }
+
+    @Scheduled(fixedDelayString = "${app.statistics.reconcile-interval:PT10M}",
+            initialDelayString = "${app.statistics.reconcile-interval:PT10M}")
+    public void reconcile() {
+        Snapshot incremental = snapshot();
+        scanAndSwap();
+        Snapshot actual = snapshot();
+        if (!incremental.equals(actual)) {
+            logger.info("Статистика пользователей разошлась с БД и пересчитана: было " + incremental
+                    + ", стало " + actual);
+        }
+    }
+
+    /**
+     * Проход по БД и подмена счётчиков. Изменения, применённые за время прохода, повторяются на новых счётчиках;
+     * подмена идёт под блокировкой записи, чтобы ни одно изменение не попало в старые счётчики после повтора.
+     */
+    private synchronized void scanAndSwap() {
+        changesDuringScan = new ConcurrentLinkedQueue<>();
+        try {
+            Counters scanned = scan();
+            swapLock.writeLock().lock();
+            try {
+                changesDuringScan.forEach(change -> applyChanges(scanned, change.before(), change.after()));
+                counters = scanned;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+        } finally {
+            changesDuringScan = null;
+        }
+    }
+
+    private Counters scan() {
+        Counters scanned = new Counters();
+        shardRouter.scatter(shard -> readOnlyTransaction.execute(status -> scanShard(scanned)));
+        return scanned;
+    }
+
+    private Counters scanShard(Counters scanned) {
+        try (Stream<UserRepository.StatisticsRow> rows = userRepository.streamAllStatisticsRows()) {
+            Long currentId = null;
+            Shape current = null;
+            for (UserRepository.StatisticsRow row : (Iterable<UserRepository.StatisticsRow>) rows::iterator) {
+                if (!row.getId().equals(currentId)) {
+                    scanned.add(current, 1);
+                    currentId = row.getId();
+                    current = new Shape(row.getAge(), new HashSet<>());
+                }
+                if (row.getRoleName() != null) {
+                    current.roles().add(row.getRoleName());
+                }
+            }
+            scanned.add(current, 1);
+        }
+        return scanned;
+    }
+
+    private void applyChanges(Map<Long, Shape> before, Map<Long, Shape> after) {
+        swapLock.readLock().lock();
+        try {
+            applyChanges(counters, before, after);
+            Queue<Change> buffer = changesDuringScan;
+            if (buffer != null) {
+                buffer.add(new Change(before, after));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private static void applyChanges(Counters current, Map<Long, Shape> before, Map<Long, Shape> after) {
+        before.forEach((id, shape) -> {
+            if (!Objects.equals(shape, after.get(id))) {
+                current.add(shape, -1);
+            }
+        });
+        after.forEach((id, shape) -> {
+            if (!Objects.equals(shape, before.get(id))) {
+                current.add(shape, 1);
+            }
+        });
+    }
+
+    private static int ageBucket(Byte age) {
+        if (age == null || age < 1) {
+            return AGE_BUCKETS.size() - 1;
+        }
+        return Math.min(age / 10, AGE_BUCKETS.size() - 2);
+    }
+
+    /**
+     * Возраст и роли одного пользователя - всё, что влияет на статистику.
+     */
+    public record Shape(Byte age, Set<String> roles) {
+
+        public static Shape of(User user) {
+            return new Shape(user.getAge(), user.getRoles().stream()
+                    .map(Role::getName)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toCollection(HashSet::new)));
+        }
+    }
+
+    public record Snapshot(long total, Map<String, Long> usersByRole, Map<String, Long> usersByAge) {
+    }
+
+    private record Change(Map<Long, Shape> before, Map<Long, Shape> after) {
+    }
+
+    private static class Counters {
+        private final LongAdder total = new LongAdder();
+        private final Map<String, LongAdder> usersByRole = new ConcurrentHashMap<>();
+        private final AtomicLongArray usersByAge = new AtomicLongArray(AGE_BUCKETS.size());
+
+        private void add(Shape shape, int delta) {
+            if (shape == null) {
+                return;
+            }
+            total.add(delta);
+            for (String role : shape.roles()) {
+                usersByRole.computeIfAbsent(role, r -> new LongAdder()).add(delta);
+            }
+            usersByAge.addAndGet(ageBucket(shape.age()), delta);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Адаптивный ограничитель числа одновременно выполняемых запросов по схеме AIMD
+ * (additive increase / multiplicative decrease).
+ * <p>
+ * - Если запрос выполнился быстрее порога задержки и ограничитель был хотя бы наполовину загружен, лимит
+ * понемногу растёт (на 1/limit за запрос, т.е. примерно на единицу за "окно" из limit запросов);
+ * - Если запрос выполнился медленнее порога или с ошибкой сервера - лимит умножается на "backoffRatio", но не
+ * чаще раза за "backoffWindow". Медленные ответы приходят пачкой - от запросов, пущенных ещё до снижения, - и
+ * если снижать лимит на каждый из них, он за одну перегрузку проваливается до "minLimit".
+ * <p>
+ * Так при замедлении БД лимит быстро падает и лишние запросы отбрасываются сразу, а не копятся на потоках Tomcat.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final long backoffWindowNanos;
+    private final LongSupplier clock;
+    private final AtomicLong rejected = new AtomicLong();
+    private double limit;
+    private int inFlight;
+    private long lastBackoffNanos;
+    private boolean backedOff;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos,
+                                      double backoffRatio, long backoffWindowNanos) {
+        this(initialLimit, minLimit, maxLimit, latencyThresholdNanos, backoffRatio, backoffWindowNanos,
+                System::nanoTime);
+    }
+
+    AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos,
+                               double backoffRatio, long backoffWindowNanos, LongSupplier clock) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.backoffRatio = backoffRatio;
+        this.backoffWindowNanos = backoffWindowNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * Пытается занять место под запрос. Если лимит исчерпан - сразу "false", без ожидания.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Освобождает место и подстраивает лимит по наблюдённой задержке запроса.
+     */
+    public synchronized void release(long latencyNanos, boolean failed) {
+        int inFlightBefore = inFlight;
+        inFlight--;
+        if (failed || latencyNanos > latencyThresholdNanos) {
+            long now = clock.getAsLong();
+            if (!backedOff || now - lastBackoffNanos >= backoffWindowNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastBackoffNanos = now;
+                backedOff = true;
+            }
+        } else if (inFlightBefore * 2 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+}
@@ -0,0 +1,92 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Утилита сборки файла для "BreachedPasswordIndex" из публичной текстовой выгрузки утёкших паролей
+ * (Have I Been Pwned, вариант "SHA-1, ordered by hash"): строки вида "HEX-SHA1:число_утечек".
+ * Хэши пишутся подряд по 20 байт. Выгрузка уже отсортирована, утилита только проверяет порядок и
+ * не даёт собрать файл, по которому поиск работал бы неверно.
+ * <p>
+ * Запуск после "mvn compile":
+ * java -cp target/classes ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.BreachedPasswordFileBuilder
+ * pwned-passwords-sha1-ordered-by-hash.txt breached-passwords.bin [минимальное_число_утечек]
+ */
+public final class BreachedPasswordFileBuilder {
+
+    private BreachedPasswordFileBuilder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Использование: BreachedPasswordFileBuilder <выгрузка.txt> <файл.bin> "
+                    + "[минимальное_число_утечек]");
+            System.exit(1);
+        }
+        long minCount = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(args[0]), StandardCharsets.US_ASCII);
+             OutputStream output = Files.newOutputStream(Path.of(args[1]))) {
+            long written = build(reader, output, minCount);
+            System.out.println("Записано хэшей: " + written);
+        }
+    }
+
+    /**
+     * Переводит выгрузку в двоичный файл. Пустые строки пропускаются, хэши с числом утечек меньше "minCount"
+     * отбрасываются (так можно сильно уменьшить файл, оставив только популярные пароли).
+     *
+     * @return число записанных хэшей
+     */
+    public static long build(BufferedReader reader, OutputStream output, long minCount) throws IOException {
+        OutputStream buffered = new BufferedOutputStream(output, 1 << 16);
+        byte[] previous = null;
+        long written = 0;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int separator = line.indexOf(':');
+            String hex = separator < 0 ? line : line.substring(0, separator);
+            long count = separator < 0 ? 1 : Long.parseLong(line.substring(separator + 1).trim());
+            byte[] hash = parseHex(hex, lineNumber);
+            if (previous != null && Arrays.compareUnsigned(previous, hash) >= 0) {
+                throw new IOException("Строка " + lineNumber + ": выгрузка не отсортирована по хэшу или хэш повторяется");
+            }
+            previous = hash;
+            if (count >= minCount) {
+                buffered.write(hash);
+                written++;
+            }
+        }
+        buffered.flush();
+        return written;
+    }
+
+    private static byte[] parseHex(String hex, long lineNumber) throws IOException {
+        if (hex.length() != BreachedPasswordIndex.RECORD_SIZE * 2) {
+            throw new IOException("Строка " + lineNumber + ": ожидается SHA-1 из 40 шестнадцатеричных символов");
+        }
+        byte[] hash = new byte[BreachedPasswordIndex.RECORD_SIZE];
+        for (int i = 0; i < hash.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException("Строка " + lineNumber + ": недопустимый символ в хэше");
+            }
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,150 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Поиск пароля в локальной базе утёкших паролей без обращения к внешним сервисам.
+ * <p>
+ * Файл базы - отсортированные по возрастанию SHA-1 хэши паролей, по 20 байт на запись, без разделителей (строится
+ * утилитой "BreachedPasswordFileBuilder"). Файл отображается в память через NIO кусками до 2 ГБ, в куче от него
+ * ничего не лежит: страницы подгружает и вытесняет сама ОС. Размер файла на сотни миллионов записей роли не играет.
+ * <p>
+ * SHA-1 распределены равномерно, поэтому позиция хэша в файле хорошо угадывается по его первым 8 байтам
+ * (интерполяционный поиск) - обычно хватает нескольких обращений к файлу. Шаги интерполяции чередуются с делением
+ * пополам, так что даже на "неудобных" данных поиск не хуже двоичного.
+ * Объект потокобезопасен: буферы читаются только абсолютными методами "get(index)".
+ */
+public class BreachedPasswordIndex implements AutoCloseable {
+    public static final int RECORD_SIZE = 20;
+    public static final String BREACHED_MESSAGE = "Этот пароль есть в базах утёкших паролей! Придумайте другой пароль!";
+    private static final long MAX_RECORDS_PER_SEGMENT = Integer.MAX_VALUE / RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long recordsPerSegment;
+    private final long recordCount;
+
+    public BreachedPasswordIndex(Path file) throws IOException {
+        this(file, MAX_RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Размер куска задаётся явно только в тестах, чтобы проверить поиск на границах кусков на маленьком файле.
+     */
+    BreachedPasswordIndex(Path file, long recordsPerSegment) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = channel.size();
+        if (size % RECORD_SIZE != 0) {
+            channel.close();
+            throw new IOException("Размер файла " + file + " не кратен " + RECORD_SIZE + " байтам");
+        }
+        this.recordsPerSegment = recordsPerSegment;
+        this.recordCount = size / RECORD_SIZE;
+        int segmentCount = (int) ((recordCount + recordsPerSegment - 1) / recordsPerSegment);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long position = i * recordsPerSegment * RECORD_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(recordsPerSegment * RECORD_SIZE, size - position));
+        }
+    }
+
+    public long size() {
+        return recordCount;
+    }
+
+    public boolean containsPassword(String password) {
+        try {
+            return containsHash(MessageDigest.getInstance("SHA-1").digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 недоступен", e);
+        }
+    }
+
+    public boolean containsHash(byte[] sha1) {
+        if (sha1.length != RECORD_SIZE) {
+            throw new IllegalArgumentException("Ожидается SHA-1 длиной " + RECORD_SIZE + " байт");
+        }
+        long key0 = readLong(sha1, 0);
+        long key1 = readLong(sha1, 8);
+        int key2 = (int) (readLong(sha1, 12) & 0xFFFFFFFFL);
+        long low = 0;
+        long high = recordCount - 1;
+        boolean interpolate = true;
+        while (low <= high) {
+            long middle;
+            if (interpolate) {
+                long lowPrefix = prefix(low);
+                long highPrefix = prefix(high);
+                if (Long.compareUnsigned(key0, lowPrefix) < 0 || Long.compareUnsigned(key0, highPrefix) > 0) {
+                    return false;
+                }
+                double fraction = highPrefix == lowPrefix ? 0.0
+                        : unsignedToDouble(key0 - lowPrefix) / unsignedToDouble(highPrefix - lowPrefix);
+                middle = low + (long) (fraction * (high - low));
+            } else {
+                middle = (low + high) >>> 1;
+            }
+            int comparison = compare(middle, key0, key1, key2);
+            if (comparison == 0) {
+                return true;
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+            interpolate = !interpolate;
+        }
+        return false;
+    }
+
+    /**
+     * Отображённые буферы освобождает сборщик мусора, явно их не закрыть. Закрываю только канал.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long prefix(long record) {
+        return segments[(int) (record / recordsPerSegment)].getLong(offset(record));
+    }
+
+    private int compare(long record, long key0, long key1, int key2) {
+        MappedByteBuffer segment = segments[(int) (record / recordsPerSegment)];
+        int offset = offset(record);
+        int comparison = Long.compareUnsigned(segment.getLong(offset), key0);
+        if (comparison == 0) {
+            comparison = Long.compareUnsigned(segment.getLong(offset + 8), key1);
+        }
+        if (comparison == 0) {
+            comparison = Integer.compareUnsigned(segment.getInt(offset + 16), key2);
+        }
+        return comparison;
+    }
+
+    private int offset(long record) {
+        return (int) (record % recordsPerSegment) * RECORD_SIZE;
+    }
+
+    private static long readLong(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = from; i < from + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static double unsignedToDouble(long value) {
+        return (value >>> 1) * 2.0;
+    }
+
+}
@@ -0,0 +1,66 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserService;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * "Ленивый" источник пользователей для шаблона со списком пользователей.
+ * Вместо готового списка ВСЕХ пользователей в модель кладётся этот объект, и Thymeleaf в "th:each" сам
+ * вытягивает пользователей порциями по мере вывода строк таблицы. В памяти одновременно живёт только одна порция.
+ * Перед загрузкой следующей порции вызывается "beforeNextChunk" - контроллер сбрасывает в нём уже
+ * отрендеренные строки клиенту, так что первые строки таблицы приходят сразу.
+ */
+public class ChunkedUserIterable implements Iterable<User> {
+    private final UserService userService;
+    private final int chunkSize;
+    private final Runnable beforeNextChunk;
+
+    public ChunkedUserIterable(UserService userService, int chunkSize, Runnable beforeNextChunk) {
+        this.userService = userService;
+        this.chunkSize = chunkSize;
+        this.beforeNextChunk = beforeNextChunk;
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return new Iterator<>() {
+            private List<User> chunk = List.of();
+            private int position;
+            private Long lastId = 0L;
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (position < chunk.size()) {
+                    return true;
+                }
+                if (exhausted) {
+                    return false;
+                }
+                if (!chunk.isEmpty()) {
+                    beforeNextChunk.run();
+                }
+                chunk = userService.findChunkAfter(lastId, chunkSize);
+                position = 0;
+                exhausted = chunk.size() < chunkSize;
+                if (!chunk.isEmpty()) {
+                    lastId = chunk.get(chunk.size() - 1).getId();
+                }
+                return !chunk.isEmpty();
+            }
+
+            @Override
+            public User next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.get(position++);
+            }
+        };
+    }
+
+}
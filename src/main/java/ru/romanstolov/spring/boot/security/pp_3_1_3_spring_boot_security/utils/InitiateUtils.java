@@ -3,7 +3,6 @@ package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
 import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserServiceImpl;
@@ -35,10 +34,10 @@ public class InitiateUtils implements CommandLineRunner {
     /**
      * Переопределил в текущем классе метод "public void run(String... args) throws Exception" из
      * имплементированного интерфейса "CommandLineRunner".
-     * Назначил этому методу транзакцию "@Transactional", так как идёт доступ к БД с внесением изменений.
+     * Общей транзакции у метода нет: каждый "save" сервиса - своя транзакция, и при шардировании каждый
+     * пользователь уходит в свой шард.
      */
     @Override
-    @Transactional
     public void run(String... args) throws Exception {
         Collection<Role> rolesOnlyAdmin = new HashSet<>();
         Collection<Role> rolesOnlyUser = new HashSet<>();
@@ -0,0 +1,97 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Собственные события Java Flight Recorder приложения.
+ * <p>
+ * Пока запись JFR не идёт, "event.isEnabled()"/"event.shouldCommit()" возвращают "false" и событие почти
+ * ничего не стоит. Поэтому всё дорогое (хэш имени пользователя, имена методов) вычисляется только внутри
+ * "if (event.shouldCommit())". Имена пользователей в запись не попадают - только хэш, по которому можно
+ * связать события одного пользователя.
+ */
+public final class JfrEvents {
+    private static final String CATEGORY = "PP 3.1.3";
+
+    private JfrEvents() {
+
+    }
+
+    @Name("ru.romanstolov.UserLookup")
+    @Label("User Lookup")
+    @Description("Загрузка пользователя при входе (loadUserByUsername)")
+    @Category({CATEGORY, "Security"})
+    @StackTrace(false)
+    public static class UserLookupEvent extends Event {
+        @Label("Username Hash")
+        public long usernameHash;
+        @Label("Found")
+        public boolean found;
+    }
+
+    @Name("ru.romanstolov.PasswordEncoder")
+    @Label("Password Encoder")
+    @Description("Кодирование или проверка пароля (BCrypt)")
+    @Category({CATEGORY, "Security"})
+    @StackTrace(false)
+    public static class PasswordEncoderEvent extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Matched")
+        public boolean matched;
+    }
+
+    @Name("ru.romanstolov.RepositoryCall")
+    @Label("Repository Call")
+    @Description("Вызов метода репозитория Spring Data")
+    @Category({CATEGORY, "Persistence"})
+    @StackTrace(false)
+    public static class RepositoryCallEvent extends Event {
+        @Label("Repository")
+        public String repository;
+        @Label("Method")
+        public String method;
+    }
+
+    @Name("ru.romanstolov.ControllerHandler")
+    @Label("Controller Handler")
+    @Description("Обработка HTTP-запроса контроллером, включая рендеринг страницы")
+    @Category({CATEGORY, "Web"})
+    @StackTrace(false)
+    public static class ControllerHandlerEvent extends Event {
+        @Label("Handler")
+        public String handler;
+        @Label("HTTP Method")
+        public String httpMethod;
+        @Label("Status")
+        public int status;
+        @Label("Username Hash")
+        public long usernameHash;
+    }
+
+    /**
+     * Первые 8 байт SHA-256 от имени пользователя (0 для анонимного запроса).
+     */
+    public static long usernameHash(String username) {
+        if (username == null) {
+            return 0L;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(username.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
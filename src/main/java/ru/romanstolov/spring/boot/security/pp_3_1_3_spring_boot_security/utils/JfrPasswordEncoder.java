@@ -0,0 +1,48 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * Обёртка над шифровщиком паролей, отмечающая длительность каждого кодирования и проверки пароля
+ * событием JFR "PasswordEncoderEvent".
+ */
+public class JfrPasswordEncoder implements PasswordEncoder {
+    private final PasswordEncoder delegate;
+
+    public JfrPasswordEncoder(PasswordEncoder delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        JfrEvents.PasswordEncoderEvent event = new JfrEvents.PasswordEncoderEvent();
+        event.begin();
+        String encoded = delegate.encode(rawPassword);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "encode";
+            event.commit();
+        }
+        return encoded;
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        JfrEvents.PasswordEncoderEvent event = new JfrEvents.PasswordEncoderEvent();
+        event.begin();
+        boolean matched = delegate.matches(rawPassword, encodedPassword);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "matches";
+            event.matched = matched;
+            event.commit();
+        }
+        return matched;
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+}
@@ -0,0 +1,169 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Источник данных, разводящий запросы между основной БД (primary) и репликами.
+ * <p>
+ * - Транзакции "@Transactional(readOnly = true)" уходят на одну из живых реплик по кругу;
+ * - Пишущие транзакции и всё, что вне транзакций, уходит на primary;
+ * - После записи пользователь на время "stickiness" читает тоже с primary, чтобы сразу видеть свои изменения,
+ * даже если реплика ещё не догнала;
+ * - Реплики периодически проверяются, "упавшие" исключаются из ротации до восстановления. Если живых реплик
+ * нет - читаем с primary. Проверки идут в отдельных потоках с ограничением по времени: "getConnection()" у
+ * недоступной реплики висит до "connectionTimeout" пула и не должен держать общий поток планировщика.
+ * <p>
+ * Работает только в обёртке "LazyConnectionDataSourceProxy": реальное соединение должно браться уже после
+ * того, как менеджер транзакций выставил признак "readOnly".
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+    public static final String PRIMARY = "primary";
+
+    private final Map<String, DataSource> replicas;
+    private final Supplier<String> stickinessKey;
+    private final long stickinessMillis;
+    private final int healthCheckTimeoutSeconds;
+    private final Map<String, Long> lastWriteByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger replicaCounter = new AtomicInteger();
+    private final ExecutorService healthCheckExecutor;
+    private final Map<String, Future<Boolean>> healthChecks = new LinkedHashMap<>();
+    private volatile List<String> healthyReplicas;
+
+    /**
+     * @param stickinessKey возвращает ключ "читателя-писателя" (имя текущего пользователя) или null,
+     *                      если привязка чтения к primary после записи не нужна
+     */
+    public ReadWriteRoutingDataSource(DataSource primary, Map<String, DataSource> replicas,
+                                      Supplier<String> stickinessKey, Duration stickiness,
+                                      int healthCheckTimeoutSeconds) {
+        this.replicas = replicas;
+        this.stickinessKey = stickinessKey;
+        this.stickinessMillis = stickiness.toMillis();
+        this.healthCheckTimeoutSeconds = healthCheckTimeoutSeconds;
+        this.healthyReplicas = List.copyOf(replicas.keySet());
+        this.healthCheckExecutor = Executors.newFixedThreadPool(Math.max(1, replicas.size()), runnable -> {
+            Thread thread = new Thread(runnable, "replica-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<Object, Object> targetDataSources = new HashMap<>(replicas);
+        targetDataSources.put(PRIMARY, primary);
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(primary);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        String key = stickinessKey.get();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (key != null && TransactionSynchronizationManager.isActualTransactionActive()) {
+                lastWriteByKey.put(key, System.currentTimeMillis());
+            }
+            return PRIMARY;
+        }
+        if (isStickyToPrimary(key)) {
+            return PRIMARY;
+        }
+        List<String> healthy = healthyReplicas;
+        if (healthy.isEmpty()) {
+            return PRIMARY;
+        }
+        return healthy.get(Math.floorMod(replicaCounter.getAndIncrement(), healthy.size()));
+    }
+
+    /**
+     * Куда пойдёт чтение текущего потока - на primary или на какую-то из реплик (реплики между собой
+     * не различаются: отставать может любая). Ничего не отмечает, в отличие от самой маршрутизации.
+     */
+    public boolean isReadingFromPrimary() {
+        return !TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                || isStickyToPrimary(stickinessKey.get())
+                || healthyReplicas.isEmpty();
+    }
+
+    private boolean isStickyToPrimary(String key) {
+        if (key == null) {
+            return false;
+        }
+        Long lastWrite = lastWriteByKey.get(key);
+        return lastWrite != null && System.currentTimeMillis() - lastWrite < stickinessMillis;
+    }
+
+    /**
+     * Проверка реплик: "живой" считается реплика, отдавшая валидное соединение за отведённое время.
+     * Реплики проверяются параллельно. Если прошлая проверка реплики ещё не закончилась, новая не запускается -
+     * ждём прежнюю, чтобы зависшие потоки не копились.
+     * Заодно вычищаю устаревшие отметки о записи, чтобы карта не росла бесконечно.
+     */
+    @Scheduled(fixedDelayString = "${app.datasource.routing.health-check-interval:PT10S}")
+    public synchronized void checkReplicaHealth() {
+        for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+            Future<Boolean> previous = healthChecks.get(replica.getKey());
+            if (previous == null || previous.isDone()) {
+                healthChecks.put(replica.getKey(), healthCheckExecutor.submit(() -> isValid(replica.getValue())));
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(healthCheckTimeoutSeconds);
+        List<String> healthy = new ArrayList<>();
+        for (Map.Entry<String, Future<Boolean>> healthCheck : healthChecks.entrySet()) {
+            try {
+                if (healthCheck.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    healthy.add(healthCheck.getKey());
+                }
+            } catch (TimeoutException e) {
+                logger.warn("Реплика " + healthCheck.getKey() + " не ответила за " + healthCheckTimeoutSeconds
+                        + " с");
+            } catch (ExecutionException e) {
+                logger.warn("Реплика " + healthCheck.getKey() + " недоступна: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        healthyReplicas = List.copyOf(healthy);
+        long now = System.currentTimeMillis();
+        lastWriteByKey.values().removeIf(lastWrite -> now - lastWrite >= stickinessMillis);
+    }
+
+    private boolean isValid(DataSource replica) throws SQLException {
+        try (Connection connection = replica.getConnection()) {
+            return connection.isValid(healthCheckTimeoutSeconds);
+        }
+    }
+
+    public List<String> getHealthyReplicas() {
+        return healthyReplicas;
+    }
+
+    @Override
+    public void close() throws Exception {
+        healthCheckExecutor.shutdownNow();
+        for (Object dataSource : getResolvedDataSources().values()) {
+            if (dataSource instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сериализатор атрибутов HTTP-сессии для внешнего хранилища сессий (Spring Session JDBC).
+ * <p>
+ * Контекст безопасности "SecurityContext" с аутентификацией по логину и паролю пишется в компактном бинарном
+ * виде: только имя пользователя и битовая маска известных ролей (плюс редкие "неизвестные" роли строками).
+ * Сама сущность пользователя и пароль в сессию не попадают. Все остальные атрибуты сессии пишутся обычной
+ * Java-сериализацией. Первый байт записи - признак формата.
+ */
+public class SecurityContextSerializer implements Serializer<Object>, Deserializer<Object> {
+    private static final byte JAVA_SERIALIZATION = 0;
+    private static final byte COMPACT_SECURITY_CONTEXT = 1;
+    /**
+     * Порядок ролей в этом списке - это номера битов в маске. Новые роли добавлять только в конец списка,
+     * иначе уже сохранённые сессии прочитаются с чужими ролями.
+     */
+    private static final List<String> KNOWN_AUTHORITIES = List.of("ROLE_ADMIN", "ROLE_USER");
+
+    private final Serializer<Object> fallbackSerializer = new DefaultSerializer();
+    private final Deserializer<Object> fallbackDeserializer;
+
+    public SecurityContextSerializer(ClassLoader classLoader) {
+        this.fallbackDeserializer = new DefaultDeserializer(classLoader);
+    }
+
+    @Override
+    public void serialize(Object object, OutputStream outputStream) throws IOException {
+        if (!isCompactable(object)) {
+            outputStream.write(JAVA_SERIALIZATION);
+            fallbackSerializer.serialize(object, outputStream);
+            return;
+        }
+        Authentication authentication = ((SecurityContext) object).getAuthentication();
+        long authorityBits = 0L;
+        List<String> otherAuthorities = new ArrayList<>();
+        for (GrantedAuthority grantedAuthority : authentication.getAuthorities()) {
+            int bit = KNOWN_AUTHORITIES.indexOf(grantedAuthority.getAuthority());
+            if (bit >= 0) {
+                authorityBits |= 1L << bit;
+            } else {
+                otherAuthorities.add(grantedAuthority.getAuthority());
+            }
+        }
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(COMPACT_SECURITY_CONTEXT);
+        dataOutputStream.writeUTF(authentication.getName());
+        dataOutputStream.writeLong(authorityBits);
+        dataOutputStream.writeShort(otherAuthorities.size());
+        for (String authority : otherAuthorities) {
+            dataOutputStream.writeUTF(authority);
+        }
+        dataOutputStream.flush();
+    }
+
+    @Override
+    public Object deserialize(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        byte format = dataInputStream.readByte();
+        if (format == JAVA_SERIALIZATION) {
+            return fallbackDeserializer.deserialize(dataInputStream);
+        }
+        if (format != COMPACT_SECURITY_CONTEXT) {
+            throw new IOException("Неизвестный формат атрибута сессии: " + format);
+        }
+        String username = dataInputStream.readUTF();
+        long authorityBits = dataInputStream.readLong();
+        List<GrantedAuthority> authorities = new ArrayList<>();
+        for (int bit = 0; bit < KNOWN_AUTHORITIES.size(); bit++) {
+            if ((authorityBits & (1L << bit)) != 0) {
+                authorities.add(new SimpleGrantedAuthority(KNOWN_AUTHORITIES.get(bit)));
+            }
+        }
+        int otherCount = dataInputStream.readUnsignedShort();
+        for (int i = 0; i < otherCount; i++) {
+            authorities.add(new SimpleGrantedAuthority(dataInputStream.readUTF()));
+        }
+        UserDetails principal = new User(username, "", authorities);
+        return new SecurityContextImpl(new UsernamePasswordAuthenticationToken(principal, null, authorities));
+    }
+
+    /**
+     * Компактно пишем только "обычный" контекст после входа по логину и паролю. Остальные виды аутентификации
+     * (анонимная, remember-me и т.п.) несут дополнительное состояние, поэтому идут через Java-сериализацию.
+     */
+    private boolean isCompactable(Object object) {
+        if (object == null || object.getClass() != SecurityContextImpl.class) {
+            return false;
+        }
+        Authentication authentication = ((SecurityContext) object).getAuthentication();
+        return authentication != null
+                && authentication.getClass() == UsernamePasswordAuthenticationToken.class
+                && authentication.isAuthenticated()
+                && authentication.getPrincipal() instanceof UserDetails;
+    }
+
+}
@@ -0,0 +1,34 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import java.util.function.Supplier;
+
+/**
+ * Шард, с которым работает текущий поток. По нему "ShardRoutingDataSource" выбирает реальный источник данных
+ * в момент, когда транзакции впервые понадобилось соединение. Поэтому шард выставляется до первого запроса
+ * транзакции, и все её запросы, включая запись при коммите, идут в один шард.
+ */
+public final class ShardContext {
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    public static String current() {
+        return CURRENT.get();
+    }
+
+    public static <T> T callOn(String shard, Supplier<T> action) {
+        String previous = CURRENT.get();
+        CURRENT.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+}
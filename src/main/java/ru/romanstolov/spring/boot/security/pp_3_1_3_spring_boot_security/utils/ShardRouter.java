@@ -0,0 +1,142 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Правила размещения пользователей по шардам.
+ * <p>
+ * - По имени - кольцо согласованного хэширования ("ShardRing");
+ * - По "id" - номер слота: каждый шард выдаёт идентификаторы вида "slot + 1 + k * idStride" (в MySQL через
+ * "auto_increment_increment/offset" сессии), поэтому "id" сам говорит, в каком шарде лежит пользователь,
+ * и остаётся уникальным по всем шардам;
+ * - Операции по всем шардам ("scatter") выполняются параллельно, результаты возвращаются в порядке шардов,
+ * слияние делает вызывающий. Ошибка любого шарда пробрасывается вызывающему.
+ * <p>
+ * Без шардирования используется "single()": один шард, всё выполняется в текущем потоке, так что код сервиса
+ * одинаков в обоих режимах.
+ */
+public class ShardRouter implements AutoCloseable {
+    public static final String SINGLE_SHARD = "primary";
+
+    private final ShardRing ring;
+    private final Map<Integer, String> shardBySlot;
+    private final int idStride;
+    private final boolean rebalancing;
+    private final ExecutorService executor;
+
+    /**
+     * @param rebalancing идёт перенос пользователей между шардами: поиск по имени, не нашедший пользователя
+     *                    в его шарде по кольцу, дополнительно ищет во всех шардах
+     */
+    public ShardRouter(ShardRing ring, Map<Integer, String> shardBySlot, int idStride, boolean rebalancing) {
+        this.ring = ring;
+        this.shardBySlot = Map.copyOf(shardBySlot);
+        this.idStride = idStride;
+        this.rebalancing = rebalancing;
+        int shardCount = ring.getShards().size();
+        this.executor = shardCount == 1 ? null : Executors.newFixedThreadPool(shardCount * 2, runnable -> {
+            Thread thread = new Thread(runnable, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ShardRouter single() {
+        return new ShardRouter(new ShardRing(List.of(SINGLE_SHARD)), Map.of(0, SINGLE_SHARD), 1, false);
+    }
+
+    public List<String> getShards() {
+        return ring.getShards();
+    }
+
+    /**
+     * Домашний шард: первый в списке, в нём же живут таблицы, не разнесённые по шардам.
+     */
+    public String getHomeShard() {
+        return ring.getShards().get(0);
+    }
+
+    public boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    public String shardForUsername(String username) {
+        return ring.shardFor(username);
+    }
+
+    public String shardForId(Long id) {
+        if (ring.getShards().size() == 1) {
+            return getHomeShard();
+        }
+        String shard = shardBySlot.get((int) ((id - 1) % idStride));
+        if (shard == null) {
+            throw new IllegalArgumentException("Идентификатор " + id + " не принадлежит ни одному шарду");
+        }
+        return shard;
+    }
+
+    public Map<String, List<Long>> groupByShard(Collection<Long> ids) {
+        Map<String, List<Long>> groups = new LinkedHashMap<>();
+        for (Long id : ids) {
+            groups.computeIfAbsent(shardForId(id), shard -> new ArrayList<>()).add(id);
+        }
+        return groups;
+    }
+
+    public <T> T callOn(String shard, Supplier<T> action) {
+        return ShardContext.callOn(shard, action);
+    }
+
+    public void runOn(String shard, Runnable action) {
+        ShardContext.callOn(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public <T> List<T> scatter(Function<String, T> action) {
+        List<String> shards = ring.getShards();
+        if (executor == null) {
+            String shard = shards.get(0);
+            return Collections.singletonList(callOn(shard, () -> action.apply(shard)));
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> callOn(shard, () -> action.apply(shard)), executor));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+}
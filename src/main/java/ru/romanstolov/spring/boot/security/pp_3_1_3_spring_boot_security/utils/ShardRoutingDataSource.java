@@ -0,0 +1,41 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Источник данных, разводящий запросы по шардам согласно "ShardContext".
+ * Всё, что выполняется вне контекста шарда (сессии, токены "Запомнить меня", справочник ролей для форм),
+ * идёт в "домашний" шард. Неизвестный шард - ошибка, а не тихий откат на домашний.
+ * <p>
+ * Как и "ReadWriteRoutingDataSource", работает только в обёртке "LazyConnectionDataSourceProxy".
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+    private final String homeShard;
+
+    public ShardRoutingDataSource(Map<String, DataSource> shards, String homeShard) {
+        this.homeShard = homeShard;
+        setTargetDataSources(new HashMap<>(shards));
+        setDefaultTargetDataSource(shards.get(homeShard));
+        setLenientFallback(false);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        String shard = ShardContext.current();
+        return shard != null ? shard : homeShard;
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (Object dataSource : getResolvedDataSources().values()) {
+            if (dataSource instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+}
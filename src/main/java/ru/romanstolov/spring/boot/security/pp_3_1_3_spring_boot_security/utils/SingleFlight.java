@@ -0,0 +1,101 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Схлопывание одновременных одинаковых загрузок ("single flight").
+ * <p>
+ * Первый поток, запросивший ключ, сам выполняет загрузку, а потоки, пришедшие с тем же ключом, пока она идёт,
+ * ждут её результат через общий "CompletableFuture" вместо того чтобы слать в БД такой же запрос. Это не кэш:
+ * после завершения загрузки ключ забывается, и следующий вызов снова идёт в БД.
+ * <p>
+ * - Ошибка загрузки достаётся всем ожидавшим в исходном виде;
+ * - Ожидающий ждёт не дольше "timeout", потом получает "QueryTimeoutException" (сама загрузка продолжается
+ * и достанется остальным);
+ * - Если результат изменяемый или привязан к потоку загрузившего (например, сущность его контекста
+ * персистентности), задаётся "share": загрузивший публикует через него снимок, а каждый ожидающий получает
+ * собственную копию этого снимка;
+ * - Счётчики: сколько загрузок выполнено, сколько вызовов обслужено чужой загрузкой (= сэкономленных
+ * запросов) и сколько ожиданий оборвано по времени.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final UnaryOperator<V> share;
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public SingleFlight(Duration timeout) {
+        this(timeout, UnaryOperator.identity());
+    }
+
+    public SingleFlight(Duration timeout, UnaryOperator<V> share) {
+        this.timeoutNanos = timeout.toNanos();
+        this.share = share;
+    }
+
+    public V load(K key, Supplier<V> loader) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running == null) {
+            return loadAndPublish(key, loader, own);
+        }
+        coalesced.increment();
+        try {
+            return share.apply(running.get(timeoutNanos, TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            throw new QueryTimeoutException("Не дождался загрузки \"" + key + "\", начатой другим запросом", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryTimeoutException("Ожидание загрузки \"" + key + "\" прервано", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private V loadAndPublish(K key, Supplier<V> loader, CompletableFuture<V> own) {
+        loads.increment();
+        try {
+            V value = loader.get();
+            own.complete(share.apply(value));
+            return value;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+}
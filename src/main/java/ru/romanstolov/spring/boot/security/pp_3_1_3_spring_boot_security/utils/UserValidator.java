@@ -1,5 +1,6 @@
 package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.Errors;
@@ -15,14 +16,24 @@ import java.util.Optional;
  * Нужен для проверки уникальности пользовательского имени (логина в нашем случае в виде "username") при
  * регистрации нового пользователя на сайте или силами администратора, а так же при редактировании админом
  * существующего пользователя.
+ * <p>
+ * При сохранении нового пользователя предварительный SELECT больше не делается: пользователь сразу вставляется,
+ * а нарушение уникального индекса по имени переводится в ошибку поля "username": распознаёт его
+ * "UsernameConstraint.isViolatedBy()", а ошибку ставит "rejectDuplicateUsername()". Один запрос к БД вместо двух,
+ * и без гонки между одновременными регистрациями.
+ * <p>
+ * Метод "validatePassword()" отклоняет пароли из локальной базы утёкших паролей, если она подключена
+ * (см. "BreachedPasswordIndex").
  */
 @Component
 public class UserValidator implements Validator {
     private final UserServiceImpl userService;
+    private final BreachedPasswordIndex breachedPasswordIndex;
 
     @Autowired
-    public UserValidator(UserServiceImpl userService) {
+    public UserValidator(UserServiceImpl userService, ObjectProvider<BreachedPasswordIndex> breachedPasswordIndex) {
         this.userService = userService;
+        this.breachedPasswordIndex = breachedPasswordIndex.getIfAvailable();
     }
 
     /**
@@ -39,15 +50,33 @@ public class UserValidator implements Validator {
      * возвращающему Optional<User> и уже от которого вызвал метод "get()" и принимаю решение о генерации ошибки
      * если не пустой вернулся Optional<User>. Наличие содержимого в Optional<User> означает что пользователь с
      * таким именем уже существует в нашей БД и тогда генерируем ошибку.
+     * <p>
+     * Контроллеры этот метод больше не вызывают - уникальность имени проверяет БД при вставке (см. описание
+     * класса). Он оставлен только ради контракта "Validator": если валидатор подключить к "DataBinder", вернутся
+     * лишний SELECT и гонка между одновременными регистрациями.
      */
     @Override
     public void validate(Object target, Errors errors) {
         User testUser = (User) target;
         Optional<User> optionalTestUser = userService.findByUsername(testUser.getUsername());
         if (optionalTestUser.isPresent()) {
-            errors.rejectValue("username", "",
-                    "Пользователь с таким именем уже существует! Введите другое имя!");
+            rejectDuplicateUsername(errors);
         }
     }
 
+    /**
+     * Проверка пароля нового пользователя по базе утёкших паролей. Вызывать до сохранения, пока в "password"
+     * ещё введённый пароль, а не его хэш. Без подключённой базы ничего не проверяет.
+     */
+    public void validatePassword(User user, Errors errors) {
+        if (breachedPasswordIndex != null && user.getPassword() != null
+                && breachedPasswordIndex.containsPassword(user.getPassword())) {
+            errors.rejectValue("password", "", BreachedPasswordIndex.BREACHED_MESSAGE);
+        }
+    }
+
+    public void rejectDuplicateUsername(Errors errors) {
+        errors.rejectValue("username", "", UsernameConstraint.DUPLICATE_MESSAGE);
+    }
+
 }
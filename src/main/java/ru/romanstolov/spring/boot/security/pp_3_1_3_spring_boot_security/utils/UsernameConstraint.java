@@ -0,0 +1,32 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.springframework.dao.DataIntegrityViolationException;
+
+/**
+ * Уникальность имени пользователя, общая для servlet- и реактивного вариантов: имя уникального ограничения
+ * в таблице "users", текст ошибки поля "username" и распознавание нарушения этого ограничения.
+ * Не зависит ни от Hibernate, ни от сервисов, поэтому его можно подключать в любом стеке.
+ */
+public final class UsernameConstraint {
+    public static final String NAME = "uk_users_username";
+    public static final String DUPLICATE_MESSAGE = "Пользователь с таким именем уже существует! Введите другое имя!";
+
+    private UsernameConstraint() {
+    }
+
+    /**
+     * Проверяет, что ошибка целостности - это именно нарушение уникальности имени пользователя, а не что-то иное.
+     * Имя ограничения ищется в текстах ошибок по всей цепочке причин: его называет драйвер БД (и JDBC, и R2DBC),
+     * а Hibernate берёт его оттуда же.
+     */
+    public static boolean isViolatedBy(DataIntegrityViolationException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && message.toLowerCase().contains(NAME)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,42 @@
+-- Схема шарда пользователей (кроме домашнего - там таблицы создаёт Hibernate).
+-- Совпадает с тем, что Hibernate строит по сущностям "User", "Role" и "UserChangeEvent".
+-- Написана для MySQL, H2 её понимает в режиме "MODE=MySQL".
+-- Шаг и начало счётчика "id" в "users" задаёт "ShardingConfig": для MySQL - переменными сессии,
+-- для остальных БД - через "ALTER TABLE" после создания схемы.
+
+CREATE TABLE IF NOT EXISTS roles (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    name VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS users (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    age TINYINT,
+    email VARCHAR(255),
+    last_login DATETIME(6),
+    login_count INTEGER DEFAULT 0,
+    password VARCHAR(255),
+    surname VARCHAR(255),
+    username VARCHAR(255),
+    version BIGINT,
+    PRIMARY KEY (id),
+    CONSTRAINT uk_users_username UNIQUE (username)
+);
+
+CREATE TABLE IF NOT EXISTS users_roles (
+    user_id BIGINT NOT NULL,
+    role_id BIGINT NOT NULL,
+    PRIMARY KEY (user_id, role_id),
+    CONSTRAINT fk_users_roles_user FOREIGN KEY (user_id) REFERENCES users (id),
+    CONSTRAINT fk_users_roles_role FOREIGN KEY (role_id) REFERENCES roles (id)
+);
+
+CREATE TABLE IF NOT EXISTS user_outbox (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    created_at DATETIME(6) NOT NULL,
+    payload VARCHAR(2000),
+    type VARCHAR(16) NOT NULL,
+    user_id BIGINT NOT NULL,
+    PRIMARY KEY (id)
+);
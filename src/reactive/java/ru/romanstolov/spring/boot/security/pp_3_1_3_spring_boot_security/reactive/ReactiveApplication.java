@@ -0,0 +1,39 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.data.jpa.JpaRepositoriesAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.session.SessionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Import;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs.BreachedPasswordConfig;
+
+/**
+ * Неблокирующий вариант приложения: WebFlux + R2DBC + реактивный Spring Security.
+ * Собирается и запускается профилем Maven "reactive" ("mvn -Preactive spring-boot:run"), исходники лежат
+ * отдельно в "src/reactive", чтобы не мешать обычной (servlet) сборке.
+ * <p>
+ * Компоненты сканируются только в этом пакете. JPA, JDBC и Spring Session JDBC здесь не нужны и выключены,
+ * а сам класс помечен условием "REACTIVE", чтобы его не подхватило сканирование servlet-приложения.
+ * Из servlet-варианта подключается только база утёкших паролей ("BreachedPasswordConfig") - она не зависит
+ * ни от стека, ни от БД.
+ */
+@SpringBootApplication(exclude = {DataSourceAutoConfiguration.class,
+        DataSourceTransactionManagerAutoConfiguration.class, HibernateJpaAutoConfiguration.class,
+        JpaRepositoriesAutoConfiguration.class, SessionAutoConfiguration.class})
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Import(BreachedPasswordConfig.class)
+public class ReactiveApplication {
+
+	public static void main(String[] args) {
+		new SpringApplicationBuilder(ReactiveApplication.class)
+				.web(WebApplicationType.REACTIVE)
+				.profiles("reactive")
+				.run(args);
+	}
+
+}
@@ -0,0 +1,89 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.configs;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UserDetailsRepositoryReactiveAuthenticationManager;
+import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.web.server.DefaultServerRedirectStrategy;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+import org.springframework.security.web.server.WebFilterExchange;
+import org.springframework.security.web.server.authentication.logout.RedirectServerLogoutSuccessHandler;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.services.ReactiveUserService;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Реактивный аналог "WebSecurityConfig" и "SuccessUserHandler": те же права на урлы и тот же переход
+ * после входа - админ попадает на "/admin", обычный пользователь на "/user".
+ * <p>
+ * BCrypt специально медленный, и на event-loop потоках Netty его выполнять нельзя. Поэтому и проверка пароля при
+ * входе, и кодирование пароля при регистрации идут на отдельном пуле "bcrypt" размером в число ядер: больше
+ * потоков CPU-задаче не помогут, а лишние запросы ждут в очереди пула, не занимая event-loop.
+ */
+@Configuration
+@EnableWebFluxSecurity
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveSecurityConfig {
+
+    @Bean
+    public PasswordEncoder passwordEncoder() {
+        return new BCryptPasswordEncoder();
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler passwordEncodingScheduler() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return Schedulers.newBoundedElastic(threads, threads * 100, "bcrypt");
+    }
+
+    @Bean
+    public ReactiveAuthenticationManager reactiveAuthenticationManager(ReactiveUserService userService,
+                                                                       PasswordEncoder passwordEncoder,
+                                                                       Scheduler passwordEncodingScheduler) {
+        UserDetailsRepositoryReactiveAuthenticationManager authenticationManager =
+                new UserDetailsRepositoryReactiveAuthenticationManager(userService);
+        authenticationManager.setPasswordEncoder(passwordEncoder);
+        authenticationManager.setScheduler(passwordEncodingScheduler);
+        return authenticationManager;
+    }
+
+    @Bean
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http,
+                                                         ReactiveAuthenticationManager authenticationManager) {
+        RedirectServerLogoutSuccessHandler logoutSuccessHandler = new RedirectServerLogoutSuccessHandler();
+        logoutSuccessHandler.setLogoutSuccessUrl(URI.create("/"));
+        return http
+                .authenticationManager(authenticationManager)
+                .authorizeExchange()
+                .pathMatchers("/registration", "/index", "/").permitAll()
+                .pathMatchers("/admin/**").hasAuthority("ROLE_ADMIN")
+                .pathMatchers("/user/**").hasAnyAuthority("ROLE_ADMIN", "ROLE_USER")
+                .anyExchange().authenticated()
+                .and()
+                .formLogin()
+                .authenticationSuccessHandler(this::onAuthenticationSuccess)
+                .and()
+                .logout()
+                .logoutSuccessHandler(logoutSuccessHandler)
+                .and()
+                .build();
+    }
+
+    private Mono<Void> onAuthenticationSuccess(WebFilterExchange webFilterExchange, Authentication authentication) {
+        Set<String> roles = AuthorityUtils.authorityListToSet(authentication.getAuthorities());
+        String location = roles.contains("ROLE_ADMIN") ? "/admin" : "/user";
+        return new DefaultServerRedirectStrategy().sendRedirect(webFilterExchange.getExchange(), URI.create(location));
+    }
+
+}
@@ -0,0 +1,143 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.controllers;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.web.reactive.result.view.CsrfRequestDataValueProcessor;
+import org.springframework.security.web.server.csrf.CsrfToken;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.validation.BindingResult;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.thymeleaf.spring5.context.webflux.ReactiveDataDriverContextVariable;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.models.ReactiveUser;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.services.ReactiveUserService;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.BreachedPasswordIndex;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UsernameConstraint;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+/**
+ * Реактивный аналог "PeopleController" для основных страниц: стартовая, регистрация, страница пользователя,
+ * страница админа и список всех пользователей с удалением.
+ * <p>
+ * Список пользователей отдаётся в шаблон как "ReactiveDataDriverContextVariable": Thymeleaf выводит строки
+ * таблицы по мере прихода пользователей из БД и отправляет страницу клиенту кусками, не собирая весь список.
+ */
+@Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactivePeopleController {
+    private static final int USERS_BUFFER_SIZE = 200;
+    private final ReactiveUserService userService;
+    private final BreachedPasswordIndex breachedPasswordIndex;
+
+    @Autowired
+    public ReactivePeopleController(ReactiveUserService userService,
+                                    ObjectProvider<BreachedPasswordIndex> breachedPasswordIndex) {
+        this.userService = userService;
+        this.breachedPasswordIndex = breachedPasswordIndex.getIfAvailable();
+    }
+
+    /**
+     * В WebFlux CSRF-токен лежит в атрибутах запроса как "Mono", и Thymeleaf сам его не найдёт. Кладу токен в модель
+     * и в атрибут, из которого его берёт "CsrfRequestDataValueProcessor" для скрытого поля в формах.
+     */
+    @ModelAttribute("_csrf")
+    public Mono<CsrfToken> csrfToken(ServerWebExchange exchange) {
+        Mono<CsrfToken> csrfToken = exchange.getAttributeOrDefault(CsrfToken.class.getName(), Mono.empty());
+        return csrfToken.doOnSuccess(token -> exchange.getAttributes()
+                .put(CsrfRequestDataValueProcessor.DEFAULT_CSRF_ATTR_NAME, token));
+    }
+
+    @GetMapping({"/", "/index"})
+    public String index() {
+        return "index";
+    }
+
+    @GetMapping("/registration")
+    public String registrationGetUser(Model model) {
+        model.addAttribute("registrUser", new ReactiveUser());
+        return "registration";
+    }
+
+    /**
+     * Новый пользователь всегда получает "ROLE_USER". Занятое имя ловится по уникальному индексу, а пароль
+     * проверяется по базе утёкших паролей, если она подключена, - как и в servlet-варианте.
+     */
+    @PutMapping("/registration")
+    public Mono<String> registrationPutUser(@Validated @ModelAttribute("registrUser") ReactiveUser registrUser,
+                                            BindingResult bindingResult) {
+        if (bindingResult.hasErrors()) {
+            return Mono.just("registration");
+        }
+        return isBreached(registrUser.getPassword())
+                .flatMap(breached -> {
+                    if (breached) {
+                        bindingResult.rejectValue("password", "", BreachedPasswordIndex.BREACHED_MESSAGE);
+                        return Mono.just("registration");
+                    }
+                    return userService.save(registrUser, List.of("ROLE_USER"))
+                            .thenReturn("redirect:/login");
+                })
+                .onErrorResume(DataIntegrityViolationException.class, e -> {
+                    if (!UsernameConstraint.isViolatedBy(e)) {
+                        return Mono.error(e);
+                    }
+                    bindingResult.rejectValue("username", "", UsernameConstraint.DUPLICATE_MESSAGE);
+                    return Mono.just("registration");
+                });
+    }
+
+    /**
+     * Поиск в базе читает отображённый в память файл и может упереться в подгрузку страниц с диска, поэтому
+     * идёт не на event-loop, а на пуле для блокирующих задач.
+     */
+    private Mono<Boolean> isBreached(String password) {
+        if (breachedPasswordIndex == null || password == null) {
+            return Mono.just(false);
+        }
+        return Mono.fromCallable(() -> breachedPasswordIndex.containsPassword(password))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Пользователя могли удалить, пока он был в сессии, - тогда вместо пустой страницы "404 Not Found".
+     */
+    @GetMapping("/user")
+    public Mono<String> getUserPage(@AuthenticationPrincipal UserDetails principal, Model model) {
+        return userService.findUserByUsername(principal.getUsername())
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "Пользователь " + principal.getUsername() + " не найден")))
+                .doOnNext(user -> model.addAttribute("currentUser", user))
+                .thenReturn("reactive/user");
+    }
+
+    @GetMapping("/admin")
+    public String getAdminPage(@AuthenticationPrincipal UserDetails principal, Model model) {
+        model.addAttribute("currentUsername", principal.getUsername());
+        return "reactive/admin";
+    }
+
+    @GetMapping("/admin/users")
+    public String getAllUsers(Model model) {
+        model.addAttribute("listUsers",
+                new ReactiveDataDriverContextVariable(userService.findAll(), USERS_BUFFER_SIZE));
+        return "reactive/users";
+    }
+
+    @DeleteMapping("/admin/users/{id}")
+    public Mono<String> deleteUser(@PathVariable("id") Long id) {
+        return userService.deleteById(id)
+                .thenReturn("redirect:/admin/users");
+    }
+
+}
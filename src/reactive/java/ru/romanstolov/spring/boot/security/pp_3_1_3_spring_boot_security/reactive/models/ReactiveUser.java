@@ -0,0 +1,110 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.models;
+
+import javax.validation.constraints.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Пользователь реактивного варианта приложения. R2DBC не умеет связи "многие-ко-многим", поэтому роли
+ * хранятся просто списком имён и читаются тем же запросом через JOIN.
+ * Валидация полей такая же, как у JPA-сущности "User".
+ */
+public class ReactiveUser {
+    private Long id;
+    @NotNull
+    @Size(min = 3, max = 25, message = "Введите имя(логин) длиною от 3 до 25 символов!")
+    private String username;
+    @NotNull
+    @Size(min = 1, max = 25, message = "Введите фамилию длиною от 1 до 25 символов!")
+    private String surname;
+    @Min(value = 1, message = "Введите значение возраста от 1 до 110!")
+    @Max(value = 110, message = "Введите значение возраста от 1 до 110!")
+    private Byte age;
+    @Email(message = "Введите правильный адрес почты!")
+    private String email;
+    @NotEmpty(message = "Введите пароль длиною от 5 до 30 символов!")
+    private String password;
+    private List<String> roles = new ArrayList<>();
+
+    public ReactiveUser() {
+
+    }
+
+    public ReactiveUser(Long id, String username, String surname, Byte age, String email, String password,
+                        List<String> roles) {
+        this.id = id;
+        this.username = username;
+        this.surname = surname;
+        this.age = age;
+        this.email = email;
+        this.password = password;
+        this.roles = roles;
+    }
+
+    /**
+     * Роли пользователя в текстовом виде для отображения на форме - так же, как "User.getRole()".
+     */
+    public String getRole() {
+        return roles.stream()
+                .map(r -> r.startsWith("ROLE_") ? r.substring(5) : r)
+                .collect(Collectors.joining("; "));
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getSurname() {
+        return surname;
+    }
+
+    public void setSurname(String surname) {
+        this.surname = surname;
+    }
+
+    public Byte getAge() {
+        return age;
+    }
+
+    public void setAge(Byte age) {
+        this.age = age;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    public void setRoles(List<String> roles) {
+        this.roles = roles;
+    }
+
+}
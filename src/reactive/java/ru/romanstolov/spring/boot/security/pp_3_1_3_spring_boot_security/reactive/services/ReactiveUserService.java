@@ -0,0 +1,29 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.services;
+
+import org.springframework.security.core.userdetails.ReactiveUserDetailsService;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.models.ReactiveUser;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Реактивный аналог "UserService": всё возвращается в "Mono"/"Flux" и ни один метод не блокирует поток.
+ * Метод "findByUsername(String)" из "ReactiveUserDetailsService" отдаёт "UserDetails" для входа на сайт,
+ * а самого пользователя ищет "findUserByUsername(String)".
+ */
+public interface ReactiveUserService extends ReactiveUserDetailsService {
+
+    Mono<ReactiveUser> findUserByUsername(String username);
+
+    Flux<ReactiveUser> findAll();
+
+    /**
+     * Сохраняет нового пользователя с указанными ролями. Пароль кодируется BCrypt на отдельном ограниченном
+     * пуле потоков. Если имя занято - ошибка "DataIntegrityViolationException" по уникальному индексу.
+     */
+    Mono<ReactiveUser> save(ReactiveUser user, Collection<String> roleNames);
+
+    Mono<Void> deleteById(Long id);
+
+}
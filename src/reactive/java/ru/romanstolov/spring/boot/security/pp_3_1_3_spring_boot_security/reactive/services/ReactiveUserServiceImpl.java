@@ -0,0 +1,194 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.r2dbc.spi.Row;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.models.ReactiveUser;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Реализация "ReactiveUserService" поверх R2DBC "DatabaseClient" на тех же таблицах, что и JPA-вариант.
+ * <p>
+ * Пользователь и его роли читаются одним запросом с LEFT JOIN: строки идут отсортированными по id и
+ * собираются в пользователей на лету ("bufferUntilChanged"), так что список не копится в памяти целиком.
+ * Изменения, как и в "UserServiceImpl", пишутся в ту же транзакцию в таблицу "user_outbox".
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveUserServiceImpl implements ReactiveUserService {
+    private static final String SELECT_USERS_WITH_ROLES =
+            "SELECT u.id, u.username, u.surname, u.age, u.email, u.password, r.name AS role FROM users u "
+                    + "LEFT JOIN users_roles ur ON ur.user_id = u.id LEFT JOIN roles r ON r.id = ur.role_id ";
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final PasswordEncoder passwordEncoder;
+    private final Scheduler passwordEncodingScheduler;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public ReactiveUserServiceImpl(DatabaseClient databaseClient, TransactionalOperator transactionalOperator,
+                                   PasswordEncoder passwordEncoder,
+                                   @Qualifier("passwordEncodingScheduler") Scheduler passwordEncodingScheduler,
+                                   ObjectMapper objectMapper) {
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.passwordEncoder = passwordEncoder;
+        this.passwordEncodingScheduler = passwordEncodingScheduler;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public Mono<UserDetails> findByUsername(String username) {
+        return findUserByUsername(username)
+                .map(user -> new org.springframework.security.core.userdetails.User(user.getUsername(),
+                        user.getPassword(),
+                        user.getRoles().stream().map(SimpleGrantedAuthority::new).collect(Collectors.toList())));
+    }
+
+    @Override
+    public Mono<ReactiveUser> findUserByUsername(String username) {
+        return databaseClient.sql(SELECT_USERS_WITH_ROLES + "WHERE u.username = :username")
+                .bind("username", username)
+                .map(this::toUserRoleRow)
+                .all()
+                .collectList()
+                .filter(rows -> !rows.isEmpty())
+                .map(this::toUser);
+    }
+
+    @Override
+    public Flux<ReactiveUser> findAll() {
+        return databaseClient.sql(SELECT_USERS_WITH_ROLES + "ORDER BY u.id")
+                .map(this::toUserRoleRow)
+                .all()
+                .bufferUntilChanged(UserRoleRow::id)
+                .map(this::toUser);
+    }
+
+    @Override
+    public Mono<ReactiveUser> save(ReactiveUser user, Collection<String> roleNames) {
+        return Mono.fromCallable(() -> passwordEncoder.encode(user.getPassword()))
+                .subscribeOn(passwordEncodingScheduler)
+                .flatMap(encodedPassword -> insertUser(user, encodedPassword))
+                .flatMap(id -> Flux.fromIterable(roleNames)
+                        .concatMap(roleName -> databaseClient.sql("INSERT INTO users_roles (user_id, role_id) "
+                                        + "SELECT :userId, r.id FROM roles r WHERE r.name = :roleName")
+                                .bind("userId", id)
+                                .bind("roleName", roleName)
+                                .fetch()
+                                .rowsUpdated())
+                        .then(Mono.just(id)))
+                .map(id -> new ReactiveUser(id, user.getUsername(), user.getSurname(), user.getAge(),
+                        user.getEmail(), null, new ArrayList<>(roleNames)))
+                .flatMap(savedUser -> insertEvent(savedUser.getId(), UserChangeEvent.Type.SAVED, savedPayload(savedUser))
+                        .thenReturn(savedUser))
+                .as(transactionalOperator::transactional);
+    }
+
+    @Override
+    public Mono<Void> deleteById(Long id) {
+        return databaseClient.sql("DELETE FROM users_roles WHERE user_id = :id")
+                .bind("id", id)
+                .fetch()
+                .rowsUpdated()
+                .then(databaseClient.sql("DELETE FROM users WHERE id = :id")
+                        .bind("id", id)
+                        .fetch()
+                        .rowsUpdated())
+                .then(insertEvent(id, UserChangeEvent.Type.DELETED, toJson(Map.of("id", id))))
+                .as(transactionalOperator::transactional);
+    }
+
+    private Mono<Long> insertUser(ReactiveUser user, String encodedPassword) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql("INSERT INTO users "
+                        + "(username, surname, age, email, password, version, login_count) "
+                        + "VALUES (:username, :surname, :age, :email, :password, 0, 0)")
+                .bind("username", user.getUsername())
+                .bind("surname", user.getSurname())
+                .bind("password", encodedPassword);
+        spec = user.getAge() == null ? spec.bindNull("age", Byte.class) : spec.bind("age", user.getAge());
+        spec = user.getEmail() == null ? spec.bindNull("email", String.class) : spec.bind("email", user.getEmail());
+        return spec.filter(statement -> statement.returnGeneratedValues("id"))
+                .map(row -> row.get("id", Long.class))
+                .one();
+    }
+
+    private Mono<Void> insertEvent(Long userId, UserChangeEvent.Type type, String payload) {
+        return databaseClient.sql("INSERT INTO user_outbox (user_id, type, payload, created_at) "
+                        + "VALUES (:userId, :type, :payload, :createdAt)")
+                .bind("userId", userId)
+                .bind("type", type.name())
+                .bind("payload", payload)
+                .bind("createdAt", LocalDateTime.now())
+                .then();
+    }
+
+    /**
+     * Тот же формат события, что и в "UserServiceImpl", чтобы подписчики не различали, какой вариант
+     * приложения внёс изменение.
+     */
+    private String savedPayload(ReactiveUser user) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", user.getId());
+        row.put("username", user.getUsername());
+        row.put("surname", user.getSurname());
+        row.put("age", user.getAge());
+        row.put("email", user.getEmail());
+        row.put("roles", user.getRoles());
+        return toJson(row);
+    }
+
+    private String toJson(Object payload) {
+        try {
+            return objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Не удалось записать событие изменения пользователя", e);
+        }
+    }
+
+    private UserRoleRow toUserRoleRow(Row row) {
+        return new UserRoleRow(row.get("id", Long.class), row.get("username", String.class),
+                row.get("surname", String.class), row.get("age", Byte.class), row.get("email", String.class),
+                row.get("password", String.class), row.get("role", String.class));
+    }
+
+    private ReactiveUser toUser(List<UserRoleRow> rows) {
+        UserRoleRow first = rows.get(0);
+        List<String> roles = rows.stream()
+                .map(UserRoleRow::role)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return new ReactiveUser(first.id(), first.username(), first.surname(), first.age(), first.email(),
+                first.password(), roles);
+    }
+
+    /**
+     * Одна строка результата JOIN: пользователь и одна из его ролей (или null, если ролей нет).
+     */
+    private record UserRoleRow(Long id, String username, String surname, Byte age, String email, String password,
+                               String role) {
+    }
+
+}
@@ -0,0 +1,46 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.models.ReactiveUser;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.reactive.services.ReactiveUserService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Реактивный аналог "InitiateUtils": те же тестовые пользователи, но добавляются только отсутствующие -
+ * схема в реактивном варианте не пересоздаётся при каждом запуске.
+ * Блокировка здесь допустима: это однократный запуск на старте, а не обработка запроса.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveInitiateUtils implements CommandLineRunner {
+    private final ReactiveUserService userService;
+
+    @Autowired
+    public ReactiveInitiateUtils(ReactiveUserService userService) {
+        this.userService = userService;
+    }
+
+    @Override
+    public void run(String... args) throws Exception {
+        Flux.concat(
+                        seed(new ReactiveUser(null, "admin", "SurnameAdmin", (byte) 100, "email_admin@mail.ru",
+                                "admin", List.of("ROLE_ADMIN"))),
+                        seed(new ReactiveUser(null, "user1", "Surname1", (byte) 10, "email_1@mail.ru",
+                                "password1", List.of("ROLE_USER"))),
+                        seed(new ReactiveUser(null, "user5", "Surname5", (byte) 50, "email_5@mail.ru",
+                                "password5", List.of("ROLE_ADMIN", "ROLE_USER"))))
+                .blockLast();
+    }
+
+    private Mono<ReactiveUser> seed(ReactiveUser user) {
+        return userService.findUserByUsername(user.getUsername())
+                .switchIfEmpty(userService.save(user, user.getRoles()));
+    }
+
+}
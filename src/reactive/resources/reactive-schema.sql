@@ -0,0 +1,36 @@
+-- Те же таблицы, что создаёт Hibernate в servlet-варианте: R2DBC схему сам не строит.
+CREATE TABLE IF NOT EXISTS roles (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    name VARCHAR(255),
+    PRIMARY KEY (id)
+);
+CREATE TABLE IF NOT EXISTS users (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    age TINYINT,
+    email VARCHAR(255),
+    password VARCHAR(255),
+    surname VARCHAR(255),
+    username VARCHAR(255),
+    version BIGINT,
+    last_login DATETIME(6),
+    login_count INTEGER DEFAULT 0,
+    PRIMARY KEY (id),
+    CONSTRAINT uk_users_username UNIQUE (username)
+);
+CREATE TABLE IF NOT EXISTS users_roles (
+    user_id BIGINT NOT NULL,
+    role_id BIGINT NOT NULL,
+    PRIMARY KEY (user_id, role_id),
+    FOREIGN KEY (user_id) REFERENCES users (id),
+    FOREIGN KEY (role_id) REFERENCES roles (id)
+);
+CREATE TABLE IF NOT EXISTS user_outbox (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    user_id BIGINT NOT NULL,
+    type VARCHAR(16) NOT NULL,
+    payload VARCHAR(2000),
+    created_at DATETIME(6) NOT NULL,
+    PRIMARY KEY (id)
+);
+INSERT INTO roles (name) SELECT 'ROLE_ADMIN' FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM roles WHERE name = 'ROLE_ADMIN');
+INSERT INTO roles (name) SELECT 'ROLE_USER' FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM roles WHERE name = 'ROLE_USER');
@@ -0,0 +1,95 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.RememberMeToken;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.RememberMeTokenRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Несколько одновременных запросов с одним и тем же cookie: токен меняется один раз, а остальные запросы
+ * проходят по старому токену в течение "grace-period" - без ошибки и без удаления серии как украденной.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Import({PersistentRememberMeServices.class, LoginTracker.class,
+        PersistentRememberMeServicesTest.UserDetailsConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PersistentRememberMeServicesTest {
+    private static final int THREADS = 8;
+    private static final String USERNAME = "remembered";
+
+    @Autowired
+    private PersistentRememberMeServices rememberMeServices;
+    @Autowired
+    private RememberMeTokenRepository tokenRepository;
+
+    @TestConfiguration
+    static class UserDetailsConfig {
+        @Bean
+        public UserDetailsService userDetailsService() {
+            return new InMemoryUserDetailsManager(User.withUsername(USERNAME).password("{noop}password")
+                    .roles("USER").build());
+        }
+    }
+
+    @Test
+    void parallelRequestsWithTheSameCookieAreAccepted() throws Exception {
+        String series = "parallel-series";
+        String token = "parallel-token";
+        tokenRepository.save(new RememberMeToken(series, USERNAME, sha256(token), LocalDateTime.now()));
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<UserDetails>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return rememberMeServices.processAutoLoginCookie(new String[]{series, token},
+                            new MockHttpServletRequest(), new MockHttpServletResponse());
+                }));
+            }
+            start.countDown();
+            for (Future<UserDetails> result : results) {
+                assertEquals(USERNAME, result.get(10, TimeUnit.SECONDS).getUsername());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        RememberMeToken rotated = tokenRepository.findById(series).orElseThrow();
+        assertNotEquals(sha256(token), rotated.getTokenHash());
+    }
+
+    private static String sha256(String token) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                .digest(token.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,210 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRing;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Добавление третьего шарда к двум заполненным: после переноса каждый пользователь лежит ровно в одном шарде -
+ * том, что назначает новое кольцо, - со своими ролями, а его новый "id" указывает на этот шард.
+ */
+class ShardRebalancerTest {
+    private static final int STRIDE = 16;
+    private static final int USERS = 60;
+
+    private final Map<String, EmbeddedDatabase> databases = new LinkedHashMap<>();
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+
+    @BeforeEach
+    void setUp() {
+        for (int slot = 0; slot < 3; slot++) {
+            databases.put("shard-" + slot, createShard(slot));
+        }
+        ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource(
+                new HashMap<String, DataSource>(databases), "shard-0");
+        routingDataSource.afterPropertiesSet();
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(routingDataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+    }
+
+    @AfterEach
+    void tearDown() {
+        databases.values().forEach(EmbeddedDatabase::shutdown);
+    }
+
+    @Test
+    void usersMoveToTheShardOfTheNewRing() {
+        try (ShardRouter twoShards = router(2); ShardRouter threeShards = router(3)) {
+            for (int i = 0; i < USERS; i++) {
+                String username = "user" + i;
+                twoShards.runOn(twoShards.shardForUsername(username), () -> {
+                    jdbcTemplate.update("INSERT INTO roles (name) SELECT 'ROLE_USER' WHERE NOT EXISTS "
+                            + "(SELECT 1 FROM roles WHERE name = 'ROLE_USER')");
+                    jdbcTemplate.update("INSERT INTO users (username, surname, age) VALUES (?, 'Surname', 20)",
+                            username);
+                    jdbcTemplate.update("INSERT INTO users_roles (user_id, role_id) SELECT u.id, r.id FROM users u, "
+                            + "roles r WHERE u.username = ? AND r.name = 'ROLE_USER'", username);
+                });
+            }
+
+            Map<String, Integer> moved = rebalancer(threeShards).rebalance();
+
+            assertTrue(moved.values().stream().mapToInt(Integer::intValue).sum() > 0);
+            int total = 0;
+            for (String shard : threeShards.getShards()) {
+                List<Map<String, Object>> users = threeShards.callOn(shard, () -> jdbcTemplate.queryForList(
+                        "SELECT u.id, u.username, r.name FROM users u "
+                                + "JOIN users_roles ur ON ur.user_id = u.id JOIN roles r ON r.id = ur.role_id"));
+                for (Map<String, Object> user : users) {
+                    assertEquals(shard, threeShards.shardForUsername((String) user.get("username")));
+                    assertEquals(shard, threeShards.shardForId(((Number) user.get("id")).longValue()));
+                    assertEquals("ROLE_USER", user.get("name"));
+                }
+                total += users.size();
+            }
+            assertEquals(USERS, total);
+            assertEquals(moved.get("shard-0") + moved.get("shard-1"), threeShards.callOn("shard-2",
+                    () -> jdbcTemplate.queryForObject("SELECT COUNT(*) FROM user_outbox WHERE type = 'SAVED'",
+                            Integer.class)));
+        }
+    }
+
+    /**
+     * Повторный запуск после завершённого переноса ничего не трогает.
+     */
+    @Test
+    void secondRunMovesNothing() {
+        try (ShardRouter twoShards = router(2); ShardRouter threeShards = router(3)) {
+            for (int i = 0; i < USERS; i++) {
+                String username = "user" + i;
+                twoShards.runOn(twoShards.shardForUsername(username), () ->
+                        jdbcTemplate.update("INSERT INTO users (username) VALUES (?)", username));
+            }
+            rebalancer(threeShards).rebalance();
+
+            assertEquals(Map.of("shard-0", 0, "shard-1", 0, "shard-2", 0), rebalancer(threeShards).rebalance());
+        }
+    }
+
+    /**
+     * Пока шёл перенос, в новом шарде зарегистрировался другой пользователь с тем же именем: перенос его не
+     * затирает, а исходный пользователь остаётся в своём шарде.
+     */
+    @Test
+    void usernameTakenOnTargetKeepsTheSourceUser() {
+        try (ShardRouter twoShards = router(2); ShardRouter threeShards = router(3)) {
+            String username = usernameMovedTo("shard-2", twoShards, threeShards);
+            String source = twoShards.shardForUsername(username);
+            twoShards.runOn(source, () ->
+                    jdbcTemplate.update("INSERT INTO users (username, surname) VALUES (?, 'Old')", username));
+            threeShards.runOn("shard-2", () ->
+                    jdbcTemplate.update("INSERT INTO users (username, surname) VALUES (?, 'New')", username));
+
+            assertEquals(Map.of("shard-0", 0, "shard-1", 0, "shard-2", 0), rebalancer(threeShards).rebalance());
+
+            assertEquals("Old", surnameOn(twoShards, source, username));
+            assertEquals("New", surnameOn(threeShards, "shard-2", username));
+        }
+    }
+
+    /**
+     * Перенос прервался между копией и удалением, а исходного пользователя тем временем отредактировали: повторный
+     * запуск находит копию по журналу, обновляет её по исходному и удаляет исходного. Журнал после запуска пуст.
+     */
+    @Test
+    void interruptedMoveIsFinishedByTheNextRun() {
+        try (ShardRouter twoShards = router(2); ShardRouter threeShards = router(3)) {
+            String username = usernameMovedTo("shard-2", twoShards, threeShards);
+            String source = twoShards.shardForUsername(username);
+            twoShards.runOn(source, () -> jdbcTemplate.update(
+                    "INSERT INTO users (username, surname, version) VALUES (?, 'Edited', 1)", username));
+            Long sourceId = twoShards.callOn(source, () -> jdbcTemplate.queryForObject(
+                    "SELECT id FROM users WHERE username = ?", Long.class, username));
+            threeShards.runOn("shard-2", () -> {
+                jdbcTemplate.update("INSERT INTO users (username, surname, version) VALUES (?, 'Copied', 0)",
+                        username);
+                jdbcTemplate.update("INSERT INTO shard_moves (source_shard, source_id, target_id) "
+                        + "SELECT ?, ?, id FROM users WHERE username = ?", source, sourceId, username);
+            });
+
+            assertEquals(1, rebalancer(threeShards).rebalance().get(source));
+
+            assertEquals(0, twoShards.callOn(source, () -> jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM users WHERE username = ?", Integer.class, username)));
+            assertEquals("Edited", surnameOn(threeShards, "shard-2", username));
+            for (String shard : threeShards.getShards()) {
+                assertEquals(0, threeShards.callOn(shard, () -> jdbcTemplate.queryForObject(
+                        "SELECT COUNT(*) FROM shard_moves", Integer.class)));
+            }
+        }
+    }
+
+    private static String usernameMovedTo(String target, ShardRouter before, ShardRouter after) {
+        for (int i = 0; ; i++) {
+            String username = "user" + i;
+            if (after.shardForUsername(username).equals(target) && !before.shardForUsername(username).equals(target)) {
+                return username;
+            }
+        }
+    }
+
+    private String surnameOn(ShardRouter shardRouter, String shard, String username) {
+        return shardRouter.callOn(shard, () -> jdbcTemplate.queryForObject(
+                "SELECT surname FROM users WHERE username = ?", String.class, username));
+    }
+
+    private ShardRouter router(int shardCount) {
+        Map<Integer, String> shardBySlot = new LinkedHashMap<>();
+        for (int slot = 0; slot < shardCount; slot++) {
+            shardBySlot.put(slot, "shard-" + slot);
+        }
+        return new ShardRouter(new ShardRing(shardBySlot.values()), shardBySlot, STRIDE, true);
+    }
+
+    private ShardRebalancer rebalancer(ShardRouter shardRouter) {
+        return new ShardRebalancer(jdbcTemplate, transactionManager, shardRouter, new ObjectMapper(), 7, false);
+    }
+
+    private static EmbeddedDatabase createShard(int slot) {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        JdbcTemplate shardTemplate = new JdbcTemplate(database);
+        shardTemplate.execute("CREATE TABLE roles (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255))");
+        shardTemplate.execute("CREATE TABLE users (id BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH "
+                + (slot + 1) + " INCREMENT BY " + STRIDE + ") PRIMARY KEY, age TINYINT, email VARCHAR(255), "
+                + "last_login TIMESTAMP, login_count INTEGER DEFAULT 0, password VARCHAR(255), "
+                + "surname VARCHAR(255), username VARCHAR(255) UNIQUE, version BIGINT)");
+        shardTemplate.execute("CREATE TABLE users_roles (user_id BIGINT NOT NULL REFERENCES users (id), "
+                + "role_id BIGINT NOT NULL REFERENCES roles (id), PRIMARY KEY (user_id, role_id))");
+        shardTemplate.execute("CREATE TABLE user_outbox (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                + "created_at TIMESTAMP NOT NULL, payload VARCHAR(2000), type VARCHAR(16) NOT NULL, "
+                + "user_id BIGINT NOT NULL)");
+        shardTemplate.execute("CREATE TABLE shard_moves (source_shard VARCHAR(64) NOT NULL, "
+                + "source_id BIGINT NOT NULL, target_id BIGINT NOT NULL, PRIMARY KEY (source_shard, source_id))");
+        return database;
+    }
+
+}
@@ -0,0 +1,127 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.configs.ShardingConfig;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.ShardRouter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Сервис пользователей поверх "ShardingConfig" с тремя шардами на встроенных H2: пользователь пишется в шард
+ * своего имени, находится и удаляется по "id" (значит, "id" выданы с шагом своего слота), а списки собираются
+ * со всех шардов.
+ */
+@DataJpaTest(properties = {"spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "spring.jpa.open-in-view=false",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.url=jdbc:h2:mem:sharded-users-0;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "app.sharding.enabled=true",
+        "app.sharding.shards[0].name=shard-0",
+        "app.sharding.shards[1].name=shard-1",
+        "app.sharding.shards[1].url=jdbc:h2:mem:sharded-users-1;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "app.sharding.shards[1].username=sa",
+        "app.sharding.shards[2].name=shard-2",
+        "app.sharding.shards[2].url=jdbc:h2:mem:sharded-users-2;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "app.sharding.shards[2].username=sa"})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import({ShardingConfig.class, UserServiceImpl.class, UserStatistics.class,
+        ShardedUserServiceTest.ServiceDependenciesConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class ShardedUserServiceTest {
+    private static final int USERS = 30;
+
+    @Autowired
+    private UserServiceImpl userService;
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @TestConfiguration
+    static class ServiceDependenciesConfig {
+        @Bean
+        public PasswordEncoder passwordEncoder() {
+            return new BCryptPasswordEncoder(4);
+        }
+
+        @Bean
+        public ObjectMapper objectMapper() {
+            return new ObjectMapper();
+        }
+    }
+
+    @Test
+    void usersAreFoundByIdOnTheShardOfTheirName() {
+        List<User> saved = saveUsers("found");
+
+        Set<String> usedShards = new HashSet<>();
+        for (User user : saved) {
+            String shard = shardRouter.shardForUsername(user.getUsername());
+            usedShards.add(shard);
+            assertEquals(shard, shardRouter.shardForId(user.getId()));
+            assertEquals(user.getUsername(), userService.getById(user.getId()).getUsername());
+        }
+        assertTrue(usedShards.size() > 1);
+    }
+
+    @Test
+    void userIsDeletedById() {
+        List<User> saved = saveUsers("deleted");
+        User deleted = saved.get(USERS / 2);
+
+        userService.delete(userService.getById(deleted.getId()));
+
+        assertNull(userService.getById(deleted.getId()));
+        assertTrue(userService.findByUsername(deleted.getUsername()).isEmpty());
+    }
+
+    @Test
+    void listsAreGatheredFromAllShards() {
+        List<User> saved = saveUsers("listed");
+        List<Long> savedIds = saved.stream().map(User::getId).sorted().collect(Collectors.toList());
+
+        List<Long> allIds = userService.findAll().stream().map(User::getId).collect(Collectors.toList());
+        assertTrue(allIds.containsAll(savedIds));
+        assertEquals(allIds.stream().sorted().collect(Collectors.toList()), allIds);
+
+        List<Long> chunkedIds = new ArrayList<>();
+        List<User> chunk = userService.findChunkAfter(0L, 7);
+        while (!chunk.isEmpty()) {
+            chunk.forEach(user -> chunkedIds.add(user.getId()));
+            chunk = userService.findChunkAfter(chunk.get(chunk.size() - 1).getId(), 7);
+        }
+        assertEquals(allIds, chunkedIds);
+    }
+
+    private List<User> saveUsers(String prefix) {
+        List<User> saved = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            User user = new User(prefix + i, "Surname", (byte) 1, prefix + i + "@mail.ru", "password",
+                    new HashSet<>());
+            userService.save(user);
+            saved.add(user);
+        }
+        return saved;
+    }
+
+}
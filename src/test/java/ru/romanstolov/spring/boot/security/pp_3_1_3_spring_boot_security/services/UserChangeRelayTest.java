@@ -0,0 +1,77 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.UserChangeEvent;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.UserChangeEventRepository;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Запись, закоммиченная позже записи с большим "id", не теряется и не раздаётся дважды.
+ */
+@DataJpaTest(properties = {"spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "app.outbox.lookback=PT1M"})
+@Import({UserChangeRelay.class, UserChangeStream.class, UserChangeRelayTest.DeliveredEventsConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UserChangeRelayTest {
+    @Autowired
+    private UserChangeRelay userChangeRelay;
+    @Autowired
+    private UserChangeEventRepository userChangeEventRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private DeliveredEvents deliveredEvents;
+
+    @TestConfiguration
+    static class DeliveredEventsConfig {
+        @Bean
+        public DeliveredEvents deliveredEvents() {
+            return new DeliveredEvents();
+        }
+    }
+
+    static class DeliveredEvents {
+        private final List<Long> ids = new CopyOnWriteArrayList<>();
+
+        @EventListener
+        public void onUserChange(UserChangeEvent event) {
+            ids.add(event.getId());
+        }
+    }
+
+    @Test
+    void eventCommittedBelowTheCursorIsDelivered() {
+        long base = userChangeEventRepository.findMaxId() + 100;
+        insertEvent(base + 2);
+        userChangeRelay.relay();
+        insertEvent(base + 1);
+        userChangeRelay.relay();
+        userChangeRelay.relay();
+
+        assertEquals(List.of(base + 2, base + 1), deliveredEvents.ids.stream()
+                .filter(id -> id > base)
+                .collect(Collectors.toList()));
+    }
+
+    private void insertEvent(long id) {
+        jdbcTemplate.update("INSERT INTO user_outbox (id, user_id, type, payload, created_at) "
+                + "VALUES (?, ?, 'SAVED', '{}', ?)", id, id, Timestamp.valueOf(LocalDateTime.now()));
+    }
+
+}
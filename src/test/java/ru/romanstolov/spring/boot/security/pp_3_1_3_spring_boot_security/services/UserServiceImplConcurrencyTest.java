@@ -0,0 +1,270 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils.UsernameConstraint;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Нагрузочные проверки сервиса пользователей на встроенной H2.
+ * Тестовые методы не оборачиваются в общую транзакцию - каждый поток работает в своих транзакциях сервиса,
+ * как параллельные HTTP-запросы.
+ */
+@DataJpaTest(properties = {"spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "spring.jpa.properties.hibernate.generate_statistics=true"})
+@Import({UserServiceImpl.class, UserStatistics.class, UserServiceImplConcurrencyTest.ServiceDependenciesConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UserServiceImplConcurrencyTest {
+    private static final int THREADS = 8;
+
+    @Autowired
+    private UserServiceImpl userService;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @TestConfiguration
+    static class ServiceDependenciesConfig {
+        @Bean
+        public PasswordEncoder passwordEncoder() {
+            return new BCryptPasswordEncoder(4);
+        }
+
+        @Bean
+        public ObjectMapper objectMapper() {
+            return new ObjectMapper();
+        }
+    }
+
+    @Test
+    void staleVersionIsRejected() {
+        User user = newUser("stale");
+        userService.save(user);
+
+        User firstAdmin = formCopy(userService.getById(user.getId()));
+        User secondAdmin = formCopy(userService.getById(user.getId()));
+        firstAdmin.setSurname("First");
+        userService.save(firstAdmin);
+        secondAdmin.setSurname("Second");
+
+        assertThrows(OptimisticLockingFailureException.class, () -> userService.save(secondAdmin));
+        assertEquals("First", userService.getById(user.getId()).getSurname());
+    }
+
+    /**
+     * Каждый поток многократно "патчит" возраст пользователя (+1), перечитывая его при конфликте версий.
+     * Если хоть одно обновление потерялось, итоговый возраст окажется меньше ожидаемого.
+     */
+    @Test
+    void parallelPatchesDoNotLoseUpdates() throws Exception {
+        int incrementsPerThread = 5;
+        User user = newUser("stress");
+        userService.save(user);
+        Long id = user.getId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < incrementsPerThread; i++) {
+                    while (true) {
+                        User edit = formCopy(userService.getById(id));
+                        edit.setAge((byte) (edit.getAge() + 1));
+                        try {
+                            userService.save(edit);
+                            break;
+                        } catch (OptimisticLockingFailureException e) {
+                            // чужая правка успела раньше - перечитываем и пробуем снова
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        User result = userService.getById(id);
+        assertEquals(1 + THREADS * incrementsPerThread, result.getAge().intValue());
+        assertEquals(THREADS * incrementsPerThread, result.getVersion().intValue());
+    }
+
+    /**
+     * Одновременные регистрации с одним и тем же именем: ровно одна проходит, остальные получают нарушение
+     * уникального индекса по имени (которое контроллер превращает в ошибку поля "username").
+     */
+    @Test
+    void concurrentRegistrationsWithSameUsernameCreateOneUser() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                try {
+                    userService.save(newUser("twin"));
+                    created.incrementAndGet();
+                } catch (DataIntegrityViolationException e) {
+                    assertTrue(UsernameConstraint.isViolatedBy(e));
+                    duplicates.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        assertEquals(1, created.get());
+        assertEquals(THREADS - 1, duplicates.get());
+        assertTrue(userService.findByUsername("twin").isPresent());
+    }
+
+    /**
+     * Регистрация "сразу INSERT" против старой "SELECT, затем INSERT": на каждую регистрацию ровно на один
+     * запрос к БД меньше.
+     */
+    @Test
+    void insertOnlyRegistrationSavesOneRoundTrip() {
+        int registrations = 50;
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        statistics.clear();
+        for (int i = 0; i < registrations; i++) {
+            User user = newUser("checked" + i);
+            if (userService.findByUsername(user.getUsername()).isEmpty()) {
+                userService.save(user);
+            }
+        }
+        long checkThenInsertStatements = statistics.getPrepareStatementCount();
+
+        statistics.clear();
+        for (int i = 0; i < registrations; i++) {
+            userService.save(newUser("inserted" + i));
+        }
+        long insertOnlyStatements = statistics.getPrepareStatementCount();
+
+        assertEquals(registrations, checkThenInsertStatements - insertOnlyStatements);
+    }
+
+    /**
+     * Задержка регистрации в гонке: все потоки одновременно регистрируют одни и те же имена, сначала старым путём
+     * "SELECT, затем INSERT", потом "сразу INSERT". В обоих случаях каждое имя достаётся ровно одному потоку.
+     * Перцентили задержек попыток записываются в отчёт теста, а не проверяются: на H2 в памяти нет сетевого
+     * round-trip, и разница тонет в шуме BCrypt и планировщика. Сэкономленный запрос проверяет
+     * "insertOnlyRegistrationSavesOneRoundTrip()".
+     */
+    @Test
+    void registrationLatencyUnderConcurrentRace(TestReporter testReporter) throws Exception {
+        int names = 20;
+        raceRegistrations("warmup-checked", names, true);
+        raceRegistrations("warmup-inserted", names, false);
+
+        List<Long> checkThenInsert = raceRegistrations("raced-checked", names, true);
+        List<Long> insertOnly = raceRegistrations("raced-inserted", names, false);
+
+        testReporter.publishEntry("check-then-insert", percentiles(checkThenInsert));
+        testReporter.publishEntry("insert-only", percentiles(insertOnly));
+        assertEquals(THREADS * names, checkThenInsert.size());
+        assertEquals(THREADS * names, insertOnly.size());
+    }
+
+    /**
+     * @return отсортированные задержки всех попыток регистрации, нс
+     */
+    private List<Long> raceRegistrations(String prefix, int names, boolean checkFirst) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+        Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < names; i++) {
+                    User user = newUser(prefix + i);
+                    long begin = System.nanoTime();
+                    try {
+                        if (!checkFirst || userService.findByUsername(user.getUsername()).isEmpty()) {
+                            userService.save(user);
+                            created.incrementAndGet();
+                        }
+                    } catch (DataIntegrityViolationException e) {
+                        assertTrue(UsernameConstraint.isViolatedBy(e));
+                    }
+                    latencies.add(System.nanoTime() - begin);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        assertEquals(names, created.get());
+        return latencies.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static String percentiles(List<Long> sortedNanos) {
+        return "p50 " + TimeUnit.NANOSECONDS.toMicros(sortedNanos.get(sortedNanos.size() / 2)) + " мкс, p99 "
+                + TimeUnit.NANOSECONDS.toMicros(sortedNanos.get(sortedNanos.size() * 99 / 100)) + " мкс";
+    }
+
+    private static User newUser(String username) {
+        return new User(username, "Surname", (byte) 1, username + "@mail.ru", "password", new HashSet<>());
+    }
+
+    /**
+     * Копия пользователя в том виде, в каком она приходит с формы редактирования: отдельный объект с "id" и "version".
+     */
+    private static User formCopy(User user) {
+        User copy = new User(user.getUsername(), user.getSurname(), user.getAge(), user.getEmail(), "password",
+                new HashSet<>());
+        copy.setId(user.getId());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+}
@@ -0,0 +1,71 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Счётчики статистики, сдвигаемые при каждом изменении, должны совпадать с полным пересчётом по БД.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Import({UserServiceImpl.class, UserStatistics.class, UserServiceImplConcurrencyTest.ServiceDependenciesConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UserStatisticsTest {
+    @Autowired
+    private UserServiceImpl userService;
+    @Autowired
+    private UserStatistics userStatistics;
+
+    @Test
+    void incrementalCountersMatchFullRebuild() {
+        userStatistics.rebuild();
+        User admin = new User("stat-admin", "Surname", (byte) 45, "admin@mail.ru", "password",
+                new HashSet<>(Set.of(new Role("ROLE_ADMIN"))));
+        User user = new User("stat-user", "Surname", (byte) 23, "user@mail.ru", "password",
+                new HashSet<>(Set.of(new Role("ROLE_USER"))));
+        userService.save(admin);
+        userService.save(user);
+
+        UserStatistics.Snapshot afterSave = userStatistics.snapshot();
+        assertEquals(2, afterSave.total());
+        assertEquals(Map.of("ROLE_ADMIN", 1L, "ROLE_USER", 1L), afterSave.usersByRole());
+        assertEquals(1L, afterSave.usersByAge().get("20-29"));
+        assertEquals(1L, afterSave.usersByAge().get("40-49"));
+
+        User edited = userService.getById(user.getId());
+        User form = new User(edited.getUsername(), edited.getSurname(), (byte) 31, edited.getEmail(), "password",
+                new HashSet<>());
+        form.setId(edited.getId());
+        form.setVersion(edited.getVersion());
+        userService.save(form);
+        Long adminRoleId = userService.getListRole().stream()
+                .filter(role -> role.getName().equals("ROLE_ADMIN"))
+                .findFirst().orElseThrow().getId();
+        userService.grantRole(adminRoleId, List.of(admin.getId(), user.getId()));
+
+        UserStatistics.Snapshot afterEdit = userStatistics.snapshot();
+        assertEquals(Map.of("ROLE_ADMIN", 2L), afterEdit.usersByRole());
+        assertEquals(0L, afterEdit.usersByAge().get("20-29"));
+        assertEquals(1L, afterEdit.usersByAge().get("30-39"));
+
+        userService.deleteAllById(List.of(admin.getId()));
+        UserStatistics.Snapshot incremental = userStatistics.snapshot();
+        assertEquals(1, incremental.total());
+
+        userStatistics.rebuild();
+        assertEquals(incremental, userStatistics.snapshot());
+    }
+
+}
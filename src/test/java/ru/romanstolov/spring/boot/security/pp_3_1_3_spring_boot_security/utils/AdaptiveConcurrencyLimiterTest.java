@@ -0,0 +1,100 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Рост и снижение лимита AIMD на искусственных часах: быстрые ответы под нагрузкой понемногу поднимают лимит до
+ * потолка, а пачка медленных ответов снижает его один раз за окно, не ниже пола.
+ */
+class AdaptiveConcurrencyLimiterTest {
+    private static final long THRESHOLD = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void fastResponsesUnderLoadRaiseTheLimitUpToTheCeiling() {
+        AdaptiveConcurrencyLimiter limiter = limiter(10, 1, 12);
+
+        for (int i = 0; i < 100; i++) {
+            runBatch(limiter, limiter.getLimit(), FAST);
+        }
+
+        assertEquals(12, limiter.getLimit());
+    }
+
+    @Test
+    void fastResponsesWithoutLoadKeepTheLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter(10, 1, 100);
+
+        for (int i = 0; i < 100; i++) {
+            runBatch(limiter, 1, FAST);
+        }
+
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void slowResponsesCutTheLimitOncePerWindow() {
+        AdaptiveConcurrencyLimiter limiter = limiter(100, 1, 100);
+
+        runBatch(limiter, 50, SLOW);
+        assertEquals(50, limiter.getLimit());
+
+        clock.addAndGet(WINDOW / 2);
+        runBatch(limiter, 20, SLOW);
+        assertEquals(50, limiter.getLimit());
+
+        clock.addAndGet(WINDOW);
+        runBatch(limiter, 20, SLOW);
+        assertEquals(25, limiter.getLimit());
+    }
+
+    @Test
+    void failuresCutTheLimitDownToTheFloor() {
+        AdaptiveConcurrencyLimiter limiter = limiter(100, 5, 100);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, true);
+            clock.addAndGet(WINDOW);
+        }
+
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    void requestsOverTheLimitAreRejected() {
+        AdaptiveConcurrencyLimiter limiter = limiter(2, 1, 10);
+
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getRejected());
+    }
+
+    private AdaptiveConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+        return new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit, THRESHOLD, 0.5, WINDOW, clock::get);
+    }
+
+    private static void runBatch(AdaptiveConcurrencyLimiter limiter, int requests, long latencyNanos) {
+        for (int i = 0; i < requests; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        for (int i = 0; i < requests; i++) {
+            limiter.release(latencyNanos, false);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка поиска по файлу утёкших паролей, собранному утилитой из выгрузки в формате HIBP. Куски отображения
+ * в тесте маленькие, чтобы искомые хэши попадали и на границы кусков.
+ */
+class BreachedPasswordIndexTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void findsEveryBreachedPasswordAndNothingElse() throws Exception {
+        List<String> breached = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            breached.add("password" + i);
+        }
+        Path file = buildFile(breached, 1);
+        try (BreachedPasswordIndex index = new BreachedPasswordIndex(file, 7)) {
+            assertEquals(breached.size(), index.size());
+            for (String password : breached) {
+                assertTrue(index.containsPassword(password), password);
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertFalse(index.containsPassword("strong-password-" + i));
+            }
+        }
+    }
+
+    @Test
+    void skipsRarelyBreachedPasswords() throws Exception {
+        Path file = buildFile(List.of("qwerty", "123456", "rare-one"), 2);
+        try (BreachedPasswordIndex index = new BreachedPasswordIndex(file)) {
+            assertTrue(index.containsPassword("qwerty"));
+            assertFalse(index.containsPassword("rare-one"));
+        }
+    }
+
+    @Test
+    void rejectsUnsortedDump() {
+        String dump = "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF:1\n0000000000000000000000000000000000000000:1\n";
+        assertThrows(IOException.class, () -> BreachedPasswordFileBuilder.build(
+                new BufferedReader(new StringReader(dump)), OutputStream.nullOutputStream(), 1));
+    }
+
+    /**
+     * Выгрузка как у HIBP: хэш в верхнем регистре и число утечек. Последний пароль в списке "редкий" -
+     * у него одна утечка, у остальных по десять.
+     */
+    private Path buildFile(List<String> passwords, long minCount) throws Exception {
+        TreeSet<String> lines = new TreeSet<>();
+        for (int i = 0; i < passwords.size(); i++) {
+            lines.add(sha1Hex(passwords.get(i)) + ":" + (i == passwords.size() - 1 ? 1 : 10));
+        }
+        Path file = tempDir.resolve("breached-passwords.bin");
+        try (BufferedReader reader = new BufferedReader(new StringReader(String.join("\n", lines)));
+             OutputStream output = Files.newOutputStream(file)) {
+            BreachedPasswordFileBuilder.build(reader, output, minCount);
+        }
+        return file;
+    }
+
+    private static String sha1Hex(String password) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(password.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,84 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.Role;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.models.User;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.repositories.RoleRepository;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserServiceImpl;
+import ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.services.UserStatistics;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Первоначальное заполнение БД на H2: "InitiateUtils" выполняется при старте контекста, как и в приложении.
+ * Каждый "save" - своя транзакция, а объекты ролей общие для всех пользователей, так что вторая и следующие
+ * вставки получают уже сохранённые (отсоединённые) роли.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Import({UserServiceImpl.class, UserStatistics.class, InitiateUtils.class,
+        InitiateUtilsTest.ServiceDependenciesConfig.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class InitiateUtilsTest {
+    @Autowired
+    private UserServiceImpl userService;
+    @Autowired
+    private RoleRepository roleRepository;
+
+    @TestConfiguration
+    static class ServiceDependenciesConfig {
+        @Bean
+        public PasswordEncoder passwordEncoder() {
+            return new BCryptPasswordEncoder(4);
+        }
+
+        @Bean
+        public ObjectMapper objectMapper() {
+            return new ObjectMapper();
+        }
+    }
+
+    @Test
+    void seedsUsersWithSharedRoleRows() {
+        assertEquals(Set.of("ROLE_ADMIN"), roleNames("admin"));
+        assertEquals(Set.of("ROLE_USER"), roleNames("user1"));
+        assertEquals(Set.of("ROLE_ADMIN", "ROLE_USER"), roleNames("user5"));
+        assertEquals(List.of("ROLE_ADMIN", "ROLE_USER"), roleRepository.findAll().stream()
+                .map(Role::getName)
+                .sorted()
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Роль из формы загружена конвертером вне транзакции сохранения - для неё она отсоединённая.
+     */
+    @Test
+    void newUserWithDetachedFormRoleIsSaved() {
+        Role formRole = roleRepository.findFirstByNameOrderByIdAsc("ROLE_ADMIN").orElseThrow();
+        userService.save(new User("form-user", "Surname", (byte) 30, "form@mail.ru", "password",
+                new HashSet<>(Set.of(formRole))));
+
+        assertEquals(Set.of("ROLE_ADMIN"), roleNames("form-user"));
+        assertEquals(1, roleRepository.findAllByName("ROLE_ADMIN").size());
+    }
+
+    private Set<String> roleNames(String username) {
+        User user = userService.findByUsername(username).orElseThrow();
+        return user.getRoles().stream().map(Role::getName).collect(Collectors.toSet());
+    }
+
+}
@@ -0,0 +1,167 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка маршрутизации на двух встроенных H2: в каждой БД лежит её собственное имя, и по нему видно,
+ * куда на самом деле ушёл запрос.
+ */
+class ReadWriteRoutingDataSourceTest {
+    private EmbeddedDatabase primary;
+    private EmbeddedDatabase replica;
+    private ToggleableDataSource replicaConnection;
+    private ReadWriteRoutingDataSource routingDataSource;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate readTransaction;
+    private TransactionTemplate writeTransaction;
+    private String currentUser;
+
+    @BeforeEach
+    void setUp() {
+        primary = createNode("primary");
+        replica = createNode("replica");
+        replicaConnection = new ToggleableDataSource(replica);
+        routingDataSource = new ReadWriteRoutingDataSource(primary, Map.of("replica", replicaConnection),
+                () -> currentUser, Duration.ofMinutes(1), 1);
+        routingDataSource.afterPropertiesSet();
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(routingDataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        readTransaction = new TransactionTemplate(transactionManager);
+        readTransaction.setReadOnly(true);
+        writeTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        routingDataSource.close();
+        primary.shutdown();
+        replica.shutdown();
+    }
+
+    @Test
+    void readOnlyTransactionGoesToReplica() {
+        assertEquals("replica", readTransaction.execute(status -> currentNode()));
+    }
+
+    @Test
+    void writeTransactionAndNonTransactionalCallsGoToPrimary() {
+        assertEquals("primary", writeTransaction.execute(status -> currentNode()));
+        assertEquals("primary", currentNode());
+    }
+
+    @Test
+    void readsStickToPrimaryAfterOwnWrite() {
+        currentUser = "admin";
+        writeTransaction.execute(status -> currentNode());
+        assertEquals("primary", readTransaction.execute(status -> currentNode()));
+
+        currentUser = "user1";
+        assertEquals("replica", readTransaction.execute(status -> currentNode()));
+    }
+
+    @Test
+    void readingFromPrimaryMatchesTheRouting() {
+        currentUser = "admin";
+        assertFalse(readTransaction.execute(status -> routingDataSource.isReadingFromPrimary()));
+        assertTrue(writeTransaction.execute(status -> routingDataSource.isReadingFromPrimary()));
+
+        writeTransaction.execute(status -> currentNode());
+        assertTrue(readTransaction.execute(status -> routingDataSource.isReadingFromPrimary()));
+    }
+
+    @Test
+    void unhealthyReplicaIsSkippedUntilItRecovers() {
+        replicaConnection.down = true;
+        routingDataSource.checkReplicaHealth();
+        assertTrue(routingDataSource.getHealthyReplicas().isEmpty());
+        assertEquals("primary", readTransaction.execute(status -> currentNode()));
+
+        replicaConnection.down = false;
+        routingDataSource.checkReplicaHealth();
+        assertEquals("replica", readTransaction.execute(status -> currentNode()));
+    }
+
+    /**
+     * Зависшая реплика не держит проверку дольше отведённого времени, а следующая проверка не запускает для неё
+     * ещё один поток, пока не закончилась прошлая.
+     */
+    @Test
+    void hangingReplicaIsMarkedDownWithinTheTimeout() {
+        replicaConnection.hanging = true;
+        long start = System.nanoTime();
+        routingDataSource.checkReplicaHealth();
+        routingDataSource.checkReplicaHealth();
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(routingDataSource.getHealthyReplicas().isEmpty());
+        assertEquals(1, replicaConnection.waiting);
+    }
+
+    private String currentNode() {
+        return jdbcTemplate.queryForObject("SELECT name FROM node", String.class);
+    }
+
+    private static EmbeddedDatabase createNode(String name) {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        JdbcTemplate nodeTemplate = new JdbcTemplate(database);
+        nodeTemplate.execute("CREATE TABLE node (name VARCHAR(20))");
+        nodeTemplate.update("INSERT INTO node (name) VALUES (?)", name);
+        return database;
+    }
+
+    /**
+     * Реплика, которую можно "уронить" - тогда она перестаёт выдавать соединения, - или "подвесить", как пул,
+     * ждущий соединения до "connectionTimeout".
+     */
+    private static class ToggleableDataSource extends DelegatingDataSource {
+        private volatile boolean down;
+        private volatile boolean hanging;
+        private volatile int waiting;
+
+        ToggleableDataSource(EmbeddedDatabase target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (down) {
+                throw new SQLException("Реплика недоступна");
+            }
+            if (hanging) {
+                waiting++;
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new SQLException("Реплика не ответила");
+            }
+            return super.getConnection();
+        }
+    }
+
+}
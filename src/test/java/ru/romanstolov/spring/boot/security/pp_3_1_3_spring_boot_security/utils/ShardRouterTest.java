@@ -0,0 +1,142 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка шардирования на трёх встроенных H2: каждая БД выдаёт "id" со своего слота с шагом "STRIDE",
+ * как MySQL с переменными "auto_increment_*" из "ShardingConfig".
+ */
+class ShardRouterTest {
+    private static final int STRIDE = 16;
+    private static final List<String> SHARDS = List.of("shard-0", "shard-1", "shard-2");
+
+    private final Map<String, EmbeddedDatabase> databases = new LinkedHashMap<>();
+    private ShardRouter shardRouter;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        Map<Integer, String> shardBySlot = new HashMap<>();
+        for (int slot = 0; slot < SHARDS.size(); slot++) {
+            databases.put(SHARDS.get(slot), createShard(slot));
+            shardBySlot.put(slot, SHARDS.get(slot));
+        }
+        ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource(
+                new HashMap<String, DataSource>(databases), "shard-0");
+        routingDataSource.afterPropertiesSet();
+        jdbcTemplate = new JdbcTemplate(new LazyConnectionDataSourceProxy(routingDataSource));
+        shardRouter = new ShardRouter(new ShardRing(SHARDS), shardBySlot, STRIDE, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        shardRouter.close();
+        databases.values().forEach(EmbeddedDatabase::shutdown);
+    }
+
+    @Test
+    void addingShardMovesOnlyItsShareOfUsersAndOnlyToIt() {
+        ShardRing before = new ShardRing(SHARDS);
+        ShardRing after = new ShardRing(List.of("shard-0", "shard-1", "shard-2", "shard-3"));
+        int users = 20_000;
+        int moved = 0;
+        Map<String, Integer> distribution = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            String username = "user" + i;
+            distribution.merge(before.shardFor(username), 1, Integer::sum);
+            if (!before.shardFor(username).equals(after.shardFor(username))) {
+                assertEquals("shard-3", after.shardFor(username));
+                moved++;
+            }
+        }
+        distribution.values().forEach(count -> assertTrue(count > users / 5, distribution::toString));
+        assertTrue(moved > users / 6 && moved < users / 3, "перенесено " + moved);
+    }
+
+    @Test
+    void userIsFoundByUsernameAndByIdOnItsShard() {
+        for (int i = 0; i < 30; i++) {
+            insertUser("user" + i);
+        }
+        for (String shard : SHARDS) {
+            List<Map<String, Object>> rows = shardRouter.callOn(shard,
+                    () -> jdbcTemplate.queryForList("SELECT id, username FROM users"));
+            assertTrue(!rows.isEmpty(), "шард " + shard + " пуст");
+            for (Map<String, Object> row : rows) {
+                assertEquals(shard, shardRouter.shardForUsername((String) row.get("USERNAME")));
+                assertEquals(shard, shardRouter.shardForId(((Number) row.get("ID")).longValue()));
+            }
+        }
+    }
+
+    @Test
+    void scatterGatherMergesAllShardsInIdOrder() {
+        for (int i = 0; i < 30; i++) {
+            insertUser("user" + i);
+        }
+        List<Long> merged = shardRouter.scatter(shard ->
+                        jdbcTemplate.queryForList("SELECT id FROM users WHERE id > ? ORDER BY id LIMIT 10",
+                                Long.class, 0L))
+                .stream()
+                .flatMap(List::stream)
+                .sorted()
+                .limit(10)
+                .collect(Collectors.toList());
+
+        List<Long> expected = SHARDS.stream()
+                .flatMap(shard -> shardRouter.callOn(shard,
+                        () -> jdbcTemplate.queryForList("SELECT id FROM users", Long.class)).stream())
+                .sorted()
+                .limit(10)
+                .collect(Collectors.toList());
+        assertEquals(expected, merged);
+        assertEquals(30, shardRouter.scatter(shard ->
+                jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users", Integer.class))
+                .stream().mapToInt(Integer::intValue).sum());
+    }
+
+    @Test
+    void failureOnOneShardReachesCaller() {
+        assertThrows(IllegalStateException.class, () -> shardRouter.scatter(shard -> {
+            if (shard.equals("shard-1")) {
+                throw new IllegalStateException("шард недоступен");
+            }
+            return shard;
+        }));
+    }
+
+    private void insertUser(String username) {
+        shardRouter.runOn(shardRouter.shardForUsername(username),
+                () -> jdbcTemplate.update("INSERT INTO users (username) VALUES (?)", username));
+    }
+
+    private static EmbeddedDatabase createShard(int slot) {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        new JdbcTemplate(database).execute("CREATE TABLE users (id BIGINT GENERATED BY DEFAULT AS IDENTITY "
+                + "(START WITH " + (slot + 1) + " INCREMENT BY " + STRIDE + ") PRIMARY KEY, "
+                + "username VARCHAR(255) UNIQUE)");
+        return database;
+    }
+
+}
@@ -0,0 +1,162 @@
+package ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Загрузка в тестах "висит" на защёлке, пока все потоки не встанут в ожидание, - так вызовы гарантированно
+ * приходят одновременно.
+ */
+class SingleFlightTest {
+    private static final int THREADS = 8;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneLoad() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofSeconds(10));
+        AtomicInteger queries = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = callConcurrently(() -> singleFlight.load("admin", () -> {
+            queries.incrementAndGet();
+            await(release);
+            return "loaded";
+        }));
+        waitUntilCoalesced(singleFlight, THREADS - 1);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("loaded", result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, queries.get());
+        assertEquals(1, singleFlight.getLoads());
+        assertEquals(THREADS - 1, singleFlight.getCoalesced());
+    }
+
+    /**
+     * С "share" загрузивший остаётся со своим объектом, а каждый ожидающий получает отдельную копию.
+     */
+    @Test
+    void everyWaiterGetsItsOwnCopy() throws Exception {
+        SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(Duration.ofSeconds(10), ArrayList::new);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> loaded = new ArrayList<>(List.of("ROLE_USER"));
+
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> singleFlight.load("admin", () -> {
+                await(release);
+                return loaded;
+            })));
+        }
+        waitUntilCoalesced(singleFlight, THREADS - 1);
+        release.countDown();
+
+        Set<List<String>> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<List<String>> result : results) {
+            List<String> value = result.get(10, TimeUnit.SECONDS);
+            assertEquals(List.of("ROLE_USER"), value);
+            distinct.add(value);
+        }
+        assertEquals(THREADS, distinct.size());
+    }
+
+    @Test
+    void loadErrorReachesEveryWaiter() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofSeconds(10));
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = callConcurrently(() -> singleFlight.load("admin", () -> {
+            await(release);
+            throw new IllegalStateException("БД недоступна");
+        }));
+        waitUntilCoalesced(singleFlight, THREADS - 1);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void waiterGivesUpAfterTimeoutWhileLoadGoesOn() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(Duration.ofMillis(50));
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> singleFlight.load("admin", () -> {
+            await(release);
+            return "loaded";
+        }));
+        while (singleFlight.getLoads() == 0) {
+            Thread.onSpinWait();
+        }
+
+        assertThrows(QueryTimeoutException.class, () -> singleFlight.load("admin", () -> "second query"));
+        assertEquals(1, singleFlight.getTimeouts());
+        release.countDown();
+        assertEquals("loaded", leader.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void finishedLoadIsNotCached() {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>(Duration.ofSeconds(1));
+        AtomicInteger queries = new AtomicInteger();
+
+        singleFlight.load("admin", queries::incrementAndGet);
+        assertEquals(2, singleFlight.load("admin", queries::incrementAndGet));
+        assertEquals(0, singleFlight.getCoalesced());
+    }
+
+    private List<Future<String>> callConcurrently(Callable<String> call) {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(call));
+        }
+        return results;
+    }
+
+    private static void waitUntilCoalesced(SingleFlight<?, ?> singleFlight, long waiters) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (singleFlight.getCoalesced() < waiters && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(singleFlight.getCoalesced() >= waiters, "не все потоки дождались общей загрузки");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
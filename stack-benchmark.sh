@@ -0,0 +1,58 @@
+#!/bin/sh
+# Сравнение servlet- и reactive-вариантов под одинаковой нагрузкой: пропускная способность, задержки, число
+# потоков и RSS процесса.
+# Перед запуском собрать оба jar и разложить по разным именам:
+#   ./mvnw package && cp target/pp_3_1_3_spring_boot_security-*.jar /tmp/servlet.jar
+#   ./mvnw -Preactive package && cp target/pp_3_1_3_spring_boot_security-*.jar /tmp/reactive.jar
+#   ./stack-benchmark.sh /tmp/servlet.jar /tmp/reactive.jar
+# Нужны curl и wrk, БД должна быть доступна. Нагрузка идёт от имени "admin" на страницу пользователя и на
+# список всех пользователей. Параметры нагрузки: THREADS, CONNECTIONS, DURATION.
+
+SERVLET_JAR=${1:?путь к jar servlet-варианта}
+REACTIVE_JAR=${2:?путь к jar reactive-варианта}
+THREADS=${THREADS:-4}
+CONNECTIONS=${CONNECTIONS:-200}
+DURATION=${DURATION:-30s}
+BASE=http://localhost:8080
+
+login() {
+  jar=$1
+  csrf=$(curl -s -c "$jar" "$BASE/login" | grep -o 'name="_csrf"[^>]*value="[^"]*"' | grep -o 'value="[^"]*"' \
+    | cut -d'"' -f2)
+  curl -s -b "$jar" -c "$jar" -o /dev/null -d "username=admin&password=admin&_csrf=$csrf" "$BASE/login"
+  awk '$6 == "SESSION" || $6 == "JSESSIONID" {print $6 "=" $7}' "$jar" | tail -n 1
+}
+
+run() {
+  mode=$1
+  jar_file=$2
+  log=$(mktemp)
+  java -jar "$jar_file" > "$log" 2>&1 &
+  pid=$!
+  while ! grep -q "Started .* in" "$log"; do
+    if ! kill -0 "$pid" 2>/dev/null; then
+      echo "$mode: не стартовало, см. $log"
+      return
+    fi
+    sleep 0.5
+  done
+  cookies=$(mktemp)
+  session=$(login "$cookies")
+  for path in /user /admin/users; do
+    # Короткий прогрев, чтобы JIT и пулы соединений не влияли на замер.
+    wrk -t"$THREADS" -c"$CONNECTIONS" -d5s -H "Cookie: $session" "$BASE$path" > /dev/null
+    result=$(wrk -t"$THREADS" -c"$CONNECTIONS" -d"$DURATION" --latency -H "Cookie: $session" "$BASE$path")
+    rps=$(echo "$result" | awk '/Requests\/sec/ {print $2}')
+    p50=$(echo "$result" | awk '$1 == "50%" {print $2}')
+    p99=$(echo "$result" | awk '$1 == "99%" {print $2}')
+    threads=$(awk '/^Threads/ {print $2}' "/proc/$pid/status")
+    rss=$(awk '/^VmRSS/ {print $2}' "/proc/$pid/status")
+    echo "$mode $path: ${rps} запр/с, p50 ${p50}, p99 ${p99}, потоков ${threads}, RSS $((rss / 1024)) МБ"
+  done
+  kill "$pid"
+  wait "$pid" 2>/dev/null
+  rm -f "$log" "$cookies"
+}
+
+run "servlet " "$SERVLET_JAR"
+run "reactive" "$REACTIVE_JAR"
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Замер времени старта и RSS приложения в трёх режимах: обычный fat jar, AppCDS и native image.
+# Перед запуском: "./mvnw -Pappcds package" и (на GraalVM) "./mvnw -Pnative package", БД должна быть доступна.
+# Время старта берётся из строки "Started Application in ... seconds", RSS - из /proc/<pid>/status
+# сразу после старта.
+
+MAIN=ru.romanstolov.spring.boot.security.pp_3_1_3_spring_boot_security.Application
+JAR=$(ls target/pp_3_1_3_spring_boot_security-*.jar | grep -v -- '-exec.jar' | head -n 1)
+EXEC_JAR=$(ls target/pp_3_1_3_spring_boot_security-*-exec.jar 2>/dev/null | head -n 1)
+
+measure() {
+  mode=$1
+  shift
+  log=$(mktemp)
+  "$@" > "$log" 2>&1 &
+  pid=$!
+  while ! grep -q "Started Application in" "$log"; do
+    if ! kill -0 "$pid" 2>/dev/null; then
+      echo "$mode: не стартовало, см. $log"
+      return
+    fi
+    sleep 0.2
+  done
+  started=$(grep -o "Started Application in [0-9.]* seconds" "$log" | grep -o "[0-9.]*")
+  rss=$(grep VmRSS "/proc/$pid/status" | awk '{print $2}')
+  echo "$mode: старт ${started} с, RSS $((rss / 1024)) МБ"
+  kill "$pid"
+  wait "$pid" 2>/dev/null
+  rm -f "$log"
+}
+
+if [ -n "$EXEC_JAR" ]; then
+  measure "fat jar" java -jar "$EXEC_JAR"
+fi
+if [ -f target/app-cds.jsa ]; then
+  measure "AppCDS " java -XX:SharedArchiveFile=target/app-cds.jsa -cp "$JAR:target/lib/*" "$MAIN"
+fi
+if [ -x target/pp_3_1_3_spring_boot_security ]; then
+  measure "native " target/pp_3_1_3_spring_boot_security
+fi